@@ -0,0 +1,198 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A short lived cache of remote file attributes, shared by everything that
+ * stats paths on one {@link UnixSshFileSystem}. Each entry holds every
+ * attribute the provider knows how to read, since a full stat costs the same
+ * round trip as a partial one, and is served until it is <code>ttl</code>
+ * milliseconds old. Operations performed through the provider invalidate the
+ * paths they touch (and their parent directories), but changes made by
+ * anyone else go unnoticed until the entry expires, so the ttl should be
+ * kept to how stale an answer the caller can tolerate.
+ * <p>
+ * Paths found not to exist are remembered separately, for
+ * <code>missingTtl</code> milliseconds, so that probing for files that are
+ * usually absent does not cost a round trip each time. Creating anything
+ * through the provider forgets every missing path under the parent
+ * directory of what was created.
+ */
+public class UnixSshAttributeCache {
+    static final int MAXIMUM_ENTRIES = 10000;
+
+    private Map<UnixSshPath, CacheEntry> entries = new LinkedHashMap<UnixSshPath, CacheEntry>( 16, 0.75f, true ) {
+        private static final long serialVersionUID = -2520473318244404154L;
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<UnixSshPath, CacheEntry> eldest ) {
+            return size() > MAXIMUM_ENTRIES;
+        }
+    };
+    private long hits;
+    private long misses;
+    private long missingHits;
+    private long missingTtlNanos;
+    private long ttlNanos;
+
+    UnixSshAttributeCache( long ttlMillis, long missingTtlMillis ) {
+        if ( ttlMillis < 0 || missingTtlMillis < 0 || (ttlMillis == 0 && missingTtlMillis == 0) ) {
+            throw new IllegalArgumentException( "invalid attribute cache ttl " + ttlMillis
+                    + " missing ttl " + missingTtlMillis );
+        }
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.missingTtlNanos = missingTtlMillis * 1000000L;
+    }
+
+    private boolean expired( CacheEntry entry ) {
+        return System.nanoTime() - entry.created > (entry.attributes == null ? missingTtlNanos : ttlNanos);
+    }
+
+    /**
+     * Returns the cached attributes for <code>path</code>, which must be
+     * absolute, or null if they are not cached or have expired.
+     */
+    synchronized Map<String, Object> get( UnixSshPath path ) {
+        if ( ttlNanos == 0 ) {
+            return null;
+        }
+        CacheEntry entry = entries.get( path );
+        if ( entry != null && (entry.attributes == null || expired( entry )) ) {
+            if ( entry.attributes != null ) {
+                entries.remove( path );
+            }
+            entry = null;
+        }
+        if ( entry == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.attributes;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getMissingHits() {
+        return missingHits;
+    }
+
+    public long getMissingTtl() {
+        return missingTtlNanos / 1000000L;
+    }
+
+    public long getTtl() {
+        return ttlNanos / 1000000L;
+    }
+
+    /**
+     * Drops the cached attributes of <code>path</code> and of anything under
+     * it. This looks at every entry, so it is meant for changes that reach
+     * below a directory, like a delete or a move; use
+     * {@link #invalidateFile(UnixSshPath)} when just one file changed.
+     */
+    public synchronized void invalidate( Path path ) {
+        if ( !(path instanceof UnixSshPath) ) {
+            return;
+        }
+        UnixSshPath absolutePath = ((UnixSshPath)path).toAbsolutePath();
+        Iterator<UnixSshPath> iterator = entries.keySet().iterator();
+        while ( iterator.hasNext() ) {
+            if ( iterator.next().startsWith( absolutePath ) ) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Drops the cached attributes of <code>path</code>, which must be
+     * absolute, and nothing else. Enough when only the content or metadata
+     * of a regular file changed, as with a write to it.
+     */
+    synchronized void invalidateFile( UnixSshPath path ) {
+        entries.remove( path );
+    }
+
+    /**
+     * Drops the cached attributes of <code>path</code>, which must be
+     * absolute, and forgets that anything under it was missing, leaving the
+     * attributes of anything under it alone.
+     */
+    synchronized void invalidateEntry( UnixSshPath path ) {
+        entries.remove( path );
+        Iterator<Map.Entry<UnixSshPath, CacheEntry>> iterator = entries.entrySet().iterator();
+        while ( iterator.hasNext() ) {
+            Map.Entry<UnixSshPath, CacheEntry> entry = iterator.next();
+            if ( entry.getValue().attributes == null && entry.getKey().startsWith( path ) ) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns true if <code>path</code>, which must be absolute, was recently
+     * found not to exist.
+     */
+    synchronized boolean isMissing( UnixSshPath path ) {
+        if ( missingTtlNanos == 0 ) {
+            return false;
+        }
+        CacheEntry entry = entries.get( path );
+        if ( entry == null || entry.attributes != null ) {
+            return false;
+        }
+        if ( expired( entry ) ) {
+            entries.remove( path );
+            return false;
+        }
+        missingHits++;
+        return true;
+    }
+
+    synchronized void put( UnixSshPath path, Map<String, Object> attributes ) {
+        if ( ttlNanos > 0 ) {
+            entries.put( path, new CacheEntry( attributes ) );
+        }
+    }
+
+    /**
+     * Remembers that <code>path</code>, which must be absolute, does not
+     * exist.
+     */
+    synchronized void putMissing( UnixSshPath path ) {
+        if ( missingTtlNanos > 0 ) {
+            entries.put( path, new CacheEntry( null ) );
+        }
+    }
+
+    private static class CacheEntry {
+        // null for a path that does not exist
+        private Map<String, Object> attributes;
+        private long created;
+
+        private CacheEntry( Map<String, Object> attributes ) {
+            this.attributes = attributes;
+            this.created = System.nanoTime();
+        }
+    }
+}
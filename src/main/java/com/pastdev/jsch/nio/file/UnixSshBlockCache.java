@@ -0,0 +1,301 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An in memory cache of remote file contents, in blocks of
+ * <code>blockSize</code> bytes, shared by everything reading from one
+ * {@link UnixSshFileSystem}. Blocks are keyed by the file's inode, last
+ * modified time and size as well as the block index, so a file that changes
+ * remotely simply stops matching its old blocks, which then age out. Once
+ * the cached blocks take up more than <code>budget</code> bytes, the least
+ * recently used ones are evicted. Blocks are optionally kept in direct
+ * buffers to keep large caches off the heap.
+ * <p>
+ * Note that stat only reports modification times to the second, so a file
+ * rewritten to the same size within a second of being cached by another
+ * client will not be noticed. Writes through a
+ * {@link UnixSshSeekableByteChannel} of this file system invalidate the
+ * file's blocks directly.
+ */
+public class UnixSshBlockCache {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshBlockCache.class );
+    static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    // upper bound on how many missing blocks are fetched in one request
+    static final int MAXIMUM_BLOCKS_PER_FETCH = 64;
+
+    private Map<Key, ByteBuffer> blocks = new LinkedHashMap<Key, ByteBuffer>( 16, 0.75f, true );
+    private int blockSize;
+    private long budget;
+    private long bytes;
+    private long evictions;
+    private long hits;
+    private long misses;
+    private boolean offHeap;
+
+    UnixSshBlockCache( int blockSize, long budget, boolean offHeap ) {
+        if ( blockSize <= 0 || budget < blockSize ) {
+            throw new IllegalArgumentException( "invalid block cache, block size " + blockSize
+                    + " budget " + budget );
+        }
+        this.blockSize = blockSize;
+        this.budget = budget;
+        this.offHeap = offHeap;
+    }
+
+    private synchronized boolean contains( FileVersion version, long index ) {
+        return blocks.containsKey( new Key( version, index ) );
+    }
+
+    /**
+     * Fetches block <code>index</code> and any missing blocks after it up to
+     * the one containing <code>end - 1</code> in a single request, caches
+     * them and returns block <code>index</code>.
+     */
+    private ByteBuffer fetch( FileVersion version, long index, long end, RemoteReader reader ) throws IOException {
+        long lastIndex = Math.min( (end - 1) / blockSize, index + MAXIMUM_BLOCKS_PER_FETCH - 1 );
+        long endIndex = index + 1;
+        while ( endIndex <= lastIndex && !contains( version, endIndex ) ) {
+            endIndex++;
+        }
+
+        long start = index * blockSize;
+        ByteBuffer fetched = ByteBuffer.allocate( (int)(Math.min( version.size, endIndex * blockSize ) - start) );
+        while ( fetched.hasRemaining() ) {
+            if ( reader.read( start + fetched.position(), fetched ) <= 0 ) {
+                break;
+            }
+        }
+        fetched.flip();
+        if ( !fetched.hasRemaining() ) {
+            return null;
+        }
+        boolean complete = fetched.limit() == fetched.capacity();
+        logger.trace( "fetched blocks [{}, {}) of {}", index, endIndex, version.fileKey );
+
+        ByteBuffer first = null;
+        for ( long i = index; i < endIndex && fetched.hasRemaining(); i++ ) {
+            ByteBuffer block = fetched.slice();
+            if ( block.remaining() > blockSize ) {
+                block.limit( blockSize );
+            }
+            fetched.position( fetched.position() + block.remaining() );
+            if ( complete ) {
+                put( version, i, block );
+            }
+            if ( first == null ) {
+                first = block;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Returns a duplicate of the cached block, or null if it is not cached.
+     */
+    synchronized ByteBuffer get( FileVersion version, long index ) {
+        ByteBuffer block = blocks.get( new Key( version, index ) );
+        if ( block == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return block.duplicate();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Drops every block cached for the file with this <code>fileKey</code>,
+     * whatever version it was cached under.
+     */
+    public synchronized void invalidate( Object fileKey ) {
+        Iterator<Map.Entry<Key, ByteBuffer>> iterator = blocks.entrySet().iterator();
+        while ( iterator.hasNext() ) {
+            Map.Entry<Key, ByteBuffer> entry = iterator.next();
+            if ( entry.getKey().version.fileKey.equals( fileKey ) ) {
+                bytes -= entry.getValue().capacity();
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        blocks.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Caches a copy of <code>block</code>, which must hold the whole block
+     * (or the rest of the file for the last block).
+     */
+    synchronized void put( FileVersion version, long index, ByteBuffer block ) {
+        Key key = new Key( version, index );
+        if ( blocks.containsKey( key ) ) {
+            return;
+        }
+
+        ByteBuffer copy = offHeap
+                ? ByteBuffer.allocateDirect( block.remaining() )
+                : ByteBuffer.allocate( block.remaining() );
+        copy.put( block.duplicate() );
+        copy.flip();
+        blocks.put( key, copy );
+        bytes += copy.capacity();
+
+        Iterator<ByteBuffer> iterator = blocks.values().iterator();
+        while ( bytes > budget && iterator.hasNext() ) {
+            bytes -= iterator.next().capacity();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Reads from <code>position</code> into <code>bytes</code> from the
+     * cache, fetching any missing blocks with <code>reader</code> and caching
+     * them on the way through.
+     */
+    int read( FileVersion version, long position, ByteBuffer bytes, RemoteReader reader ) throws IOException {
+        int read = 0;
+        while ( bytes.hasRemaining() && position + read < version.size ) {
+            long offset = position + read;
+            long index = offset / blockSize;
+            ByteBuffer block = get( version, index );
+            if ( block == null ) {
+                block = fetch( version, index, Math.min( version.size, offset + bytes.remaining() ), reader );
+                if ( block == null ) {
+                    // file got shorter behind our back
+                    break;
+                }
+            }
+
+            int blockOffset = (int)(offset - index * blockSize);
+            if ( blockOffset >= block.limit() ) {
+                break;
+            }
+            block.position( blockOffset );
+            if ( block.remaining() > bytes.remaining() ) {
+                block.limit( blockOffset + bytes.remaining() );
+            }
+            read += block.remaining();
+            bytes.put( block );
+        }
+        return read;
+    }
+
+    /**
+     * Identifies one version of one remote file.
+     */
+    static class FileVersion {
+        private Object fileKey;
+        private long lastModified;
+        private long size;
+
+        FileVersion( BasicFileAttributes attributes ) {
+            this( attributes.fileKey(), attributes.lastModifiedTime().toMillis(), attributes.size() );
+        }
+
+        FileVersion( Object fileKey, long lastModified, long size ) {
+            this.fileKey = fileKey;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals( Object object ) {
+            if ( !(object instanceof FileVersion) ) {
+                return false;
+            }
+            FileVersion other = (FileVersion)object;
+            return fileKey.equals( other.fileKey )
+                    && lastModified == other.lastModified
+                    && size == other.size;
+        }
+
+        Object getFileKey() {
+            return fileKey;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = fileKey.hashCode();
+            hash = 31 * hash + (int)(lastModified ^ (lastModified >>> 32));
+            return 31 * hash + (int)(size ^ (size >>> 32));
+        }
+    }
+
+    private static class Key {
+        private long index;
+        private FileVersion version;
+
+        private Key( FileVersion version, long index ) {
+            this.version = version;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals( Object object ) {
+            if ( !(object instanceof Key) ) {
+                return false;
+            }
+            Key other = (Key)object;
+            return index == other.index && version.equals( other.version );
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * version.hashCode() + (int)(index ^ (index >>> 32));
+        }
+    }
+
+    /**
+     * Reads bytes from the remote file, bypassing the cache.
+     */
+    static interface RemoteReader {
+        public int read( long position, ByteBuffer bytes ) throws IOException;
+    }
+}
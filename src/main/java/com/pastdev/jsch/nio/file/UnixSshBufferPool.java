@@ -0,0 +1,62 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+/**
+ * A small pool of heap buffers, keyed by capacity, so that the large transfer
+ * buffers used by channels and streams are not allocated (and garbage
+ * collected) once per operation. At most <code>maximumPerCapacity</code>
+ * buffers of any one capacity are retained, anything released beyond that is
+ * left for the garbage collector.
+ */
+class UnixSshBufferPool {
+    static final int DEFAULT_MAXIMUM_PER_CAPACITY = 8;
+
+    private int maximumPerCapacity;
+    private Map<Integer, LinkedList<ByteBuffer>> pool = new HashMap<Integer, LinkedList<ByteBuffer>>();
+
+    UnixSshBufferPool() {
+        this( DEFAULT_MAXIMUM_PER_CAPACITY );
+    }
+
+    UnixSshBufferPool( int maximumPerCapacity ) {
+        this.maximumPerCapacity = maximumPerCapacity;
+    }
+
+    /**
+     * Returns a cleared buffer with exactly <code>capacity</code> bytes of
+     * capacity.
+     */
+    synchronized ByteBuffer acquire( int capacity ) {
+        LinkedList<ByteBuffer> buffers = pool.get( capacity );
+        if ( buffers == null || buffers.isEmpty() ) {
+            return ByteBuffer.allocate( capacity );
+        }
+        ByteBuffer buffer = buffers.removeFirst();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool. The
+     * caller must not touch it afterwards.
+     */
+    synchronized void release( ByteBuffer buffer ) {
+        if ( buffer == null ) {
+            return;
+        }
+        LinkedList<ByteBuffer> buffers = pool.get( buffer.capacity() );
+        if ( buffers == null ) {
+            buffers = new LinkedList<ByteBuffer>();
+            pool.put( buffer.capacity(), buffers );
+        }
+        if ( buffers.size() < maximumPerCapacity ) {
+            buffers.addFirst( buffer );
+        }
+    }
+}
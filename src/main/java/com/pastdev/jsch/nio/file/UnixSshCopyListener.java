@@ -0,0 +1,45 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+
+/**
+ * Receives the outcome of each entry of the remote tree copies started by
+ * {@link UnixSshFileSystemProvider#copyRecursively(Path, Path, UnixSshCopyListener, java.nio.file.CopyOption...)}
+ * and
+ * {@link UnixSshFileSystemProvider#moveRecursively(Path, Path, UnixSshCopyListener, java.nio.file.CopyOption...)},
+ * as the remote host reports it. Called from the thread that started the
+ * copy, so it should return quickly, as the remote copy stalls while it is
+ * not being read.
+ */
+public interface UnixSshCopyListener {
+    /**
+     * Called once <code>source</code> has been copied to
+     * <code>target</code>. A directory is reported when it has been created,
+     * ahead of its contents. A move that could be done as a single rename
+     * reports the top of the tree alone.
+     *
+     * @param source
+     *            The entry copied
+     * @param target
+     *            Where it was copied to
+     */
+    public void copied( Path source, Path target );
+
+    /**
+     * Called when <code>source</code> could not be copied to
+     * <code>target</code>. The copy carries on with the other entries. A
+     * directory whose mode or timestamps could not be copied is reported
+     * here after having been reported as copied.
+     *
+     * @param source
+     *            The entry that failed
+     * @param target
+     *            Where it was to be copied to
+     * @param cause
+     *            Why it failed, with the message the remote tool printed
+     */
+    public void failed( Path source, Path target, IOException cause );
+}
@@ -0,0 +1,210 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+
+
+/**
+ * A listing of a directory, or of a whole tree, whose entries carry the
+ * attributes read by the same remote command that listed them. A walk
+ * hands them to its visitor, and when <code>cache.attributes.ttl</code> is
+ * set, asking an entry for its type or size does not cost another round
+ * trip for as long as they may be cached. The command prints one stat line per entry, named by its path under
+ * <code>path</code>, and reports a missing or non-directory
+ * <code>path</code> through its exit code.
+ * <p>
+ * Entries are parsed from the remote command's output as they arrive, and
+ * handed out as they are parsed, so a listing of any size takes constant
+ * memory and the first entry is available long before the remote command
+ * finishes. The first entry is read before the stream is returned so that a
+ * missing directory, or one that is not a directory, fails when opening the
+ * stream rather than when iterating. Closing the stream before the end of
+ * the listing abandons the remote command.
+ * <p>
+ * A walk lists directories it cannot read, without descending into them,
+ * on lines marked with {@link UnixSshFileSystemProvider#ASCII_RECORD_SEPARATOR}.
+ * Unless they are claimed with {@link #takeFailure(Path)} as they are
+ * iterated, the first of them fails the stream once it is exhausted.
+ */
+class UnixSshDirectoryStream implements DirectoryStream<Path> {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshDirectoryStream.class );
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private ChannelExecWrapper channel;
+    private boolean closed;
+    private Map<Path, IOException> failures = new LinkedHashMap<Path, IOException>();
+    private UnixSshPath path;
+    private Filter<? super Path> filter;
+    private boolean iterated;
+    private long listed;
+    private UnixSshPath next;
+    private BufferedReader reader;
+
+    UnixSshDirectoryStream( UnixSshPath path, String command, Filter<? super Path> filter ) throws IOException {
+        this.path = path;
+        this.filter = filter;
+
+        // anything changed from now on may or may not show in the listing
+        listed = System.nanoTime();
+        try {
+            channel = path.getFileSystem().getCommandRunner().open( command );
+            reader = new BufferedReader( new InputStreamReader( channel.getInputStream(), UTF8 ) );
+        }
+        catch ( JSchException e ) {
+            throw new IOException( e );
+        }
+        try {
+            next = readEntry();
+        }
+        catch ( IOException e ) {
+            if ( channel != null ) {
+                closeChannel();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        next = null;
+        if ( channel != null ) {
+            closeChannel();
+        }
+    }
+
+    private int closeChannel() {
+        try {
+            int exitCode = channel.close();
+            logger.debug( "listing of {} exited with {}", path, exitCode );
+            return exitCode;
+        }
+        finally {
+            channel = null;
+            reader = null;
+        }
+    }
+
+    @Override
+    public synchronized Iterator<Path> iterator() {
+        if ( closed ) {
+            throw new IllegalStateException( "directory stream closed" );
+        }
+        if ( iterated ) {
+            throw new IllegalStateException( "iterator already obtained" );
+        }
+        iterated = true;
+        return new Iterator<Path>() {
+            @Override
+            public boolean hasNext() {
+                synchronized ( UnixSshDirectoryStream.this ) {
+                    try {
+                        while ( next != null && filter != null && !filter.accept( next ) ) {
+                            next = readEntry();
+                        }
+                    }
+                    catch ( IOException e ) {
+                        throw new DirectoryIteratorException( e );
+                    }
+                    return next != null;
+                }
+            }
+
+            @Override
+            public Path next() {
+                synchronized ( UnixSshDirectoryStream.this ) {
+                    if ( !hasNext() ) {
+                        throw new NoSuchElementException();
+                    }
+                    Path entry = next;
+                    try {
+                        next = readEntry();
+                    }
+                    catch ( IOException e ) {
+                        throw new DirectoryIteratorException( e );
+                    }
+                    return entry;
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the next entry of the listing, or null once it is exhausted or
+     * the stream has been closed.
+     */
+    private UnixSshPath readEntry() throws IOException {
+        if ( reader == null ) {
+            return null;
+        }
+
+        String line;
+        while ( (line = reader.readLine()) != null ) {
+            // bsd stat ends each entry with a newline of its own
+            if ( line.isEmpty() ) {
+                continue;
+            }
+            if ( line.startsWith( UnixSshFileSystemProvider.ASCII_RECORD_SEPARATOR ) ) {
+                UnixSshPath entry = path.getFileSystem().provider().listedEntry( path, line.substring( 1 ), listed );
+                failures.put( entry, new AccessDeniedException( entry.toString() ) );
+                return entry;
+            }
+            return path.getFileSystem().provider().listedEntry( path, line, listed );
+        }
+
+        int exitCode = closeChannel();
+        if ( exitCode == UnixSshFileSystemProvider.EXIT_NO_SUCH_FILE ) {
+            throw new NoSuchFileException( path.toString() );
+        }
+        if ( exitCode == UnixSshFileSystemProvider.EXIT_NOT_DIRECTORY ) {
+            throw new NotDirectoryException( path.toString() );
+        }
+        if ( exitCode != 0 ) {
+            throw new IOException( "listing " + path + " failed with exit code " + exitCode );
+        }
+        if ( !failures.isEmpty() ) {
+            IOException failure = failures.values().iterator().next();
+            failures.clear();
+            throw failure;
+        }
+        return null;
+    }
+
+    /**
+     * Returns, and forgets, the reason <code>entry</code>, a directory just
+     * returned by the iterator, could not be descended into, or null if it
+     * could.
+     */
+    synchronized IOException takeFailure( Path entry ) {
+        return failures.remove( entry );
+    }
+}
@@ -0,0 +1,253 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A cache of whole remote files in a local directory, meant for large files
+ * that rarely change and get read again after the jvm restarts. An entry is
+ * named after a hash of the remote file's uri along with its inode, size and
+ * modification time, so checking whether an entry is still valid costs one
+ * remote stat and nothing else. Only reads that go through the whole file
+ * fill the cache, so reading a few bytes of a large file does not download
+ * all of it. Entries are downloaded to a temporary file, checked against
+ * another stat and renamed into place, so readers never see a partial or
+ * mismatched entry, and several jvms can share the directory. Once the directory holds more than
+ * <code>maximumSize</code> bytes the least recently used entries (by local
+ * modification time, which is touched on every hit) are removed while
+ * holding a lock on <code>.lock</code> in the directory.
+ */
+public class UnixSshDiskCache {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshDiskCache.class );
+    static final long DEFAULT_MAXIMUM_SIZE = 1024L * 1024 * 1024;
+    static final int DEFAULT_PARALLELISM = 4;
+    // FileLock is per jvm, so threads of this jvm have to take turns first
+    private static final Object EVICTION_LOCK = new Object();
+    private static final String LOCK_FILE = ".lock";
+    private static final String TEMP_SUFFIX = ".part";
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private Path directory;
+    private long hits;
+    private long maximumSize;
+    private long misses;
+    private int parallelism;
+
+    UnixSshDiskCache( Path directory, long maximumSize, int parallelism ) throws IOException {
+        this.directory = directory;
+        this.maximumSize = maximumSize;
+        this.parallelism = parallelism;
+        Files.createDirectories( directory );
+    }
+
+    private void evict() throws IOException {
+        synchronized ( EVICTION_LOCK ) {
+            try (FileChannel lockChannel = FileChannel.open( directory.resolve( LOCK_FILE ),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE )) {
+                FileLock lock = lockChannel.lock();
+                try {
+                    evictLocked();
+                }
+                finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the directory fits in
+     * <code>maximumSize</code>. Must be called holding the directory lock.
+     */
+    private void evictLocked() throws IOException {
+        final List<Path> entries = new ArrayList<Path>();
+        final List<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream( directory )) {
+            for ( Path entry : stream ) {
+                String name = entry.getFileName().toString();
+                if ( name.equals( LOCK_FILE ) || name.endsWith( TEMP_SUFFIX ) ) {
+                    continue;
+                }
+                try {
+                    BasicFileAttributes entryAttributes = Files.readAttributes( entry, BasicFileAttributes.class );
+                    entries.add( entry );
+                    attributes.add( entryAttributes );
+                    total += entryAttributes.size();
+                }
+                catch ( NoSuchFileException e ) {
+                    // removed by someone else
+                }
+            }
+        }
+        if ( total <= maximumSize ) {
+            return;
+        }
+
+        List<Integer> order = new ArrayList<Integer>();
+        for ( int i = 0; i < entries.size(); i++ ) {
+            order.add( i );
+        }
+        Collections.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( Integer a, Integer b ) {
+                return attributes.get( a ).lastModifiedTime().compareTo( attributes.get( b ).lastModifiedTime() );
+            }
+        } );
+        for ( int i = 0; i < order.size() && total > maximumSize; i++ ) {
+            Path entry = entries.get( order.get( i ) );
+            logger.debug( "evicting {} from disk cache", entry );
+            // readers that already have it open keep reading fine
+            Files.deleteIfExists( entry );
+            total -= attributes.get( order.get( i ) ).size();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static String hash( UnixSshPath path ) {
+        URI uri = path.getFileSystem().getUri();
+        String key = uri.getUserInfo() + "@" + uri.getHost() + ":" + uri.getPort()
+                + path.toAbsolutePath().toString();
+        try {
+            StringBuilder builder = new StringBuilder();
+            for ( byte b : MessageDigest.getInstance( "SHA-256" ).digest( key.getBytes( UTF8 ) ) ) {
+                builder.append( String.format( "%02x", b & 0xff ) );
+            }
+            return builder.toString();
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private Path entry( UnixSshPath path, BasicFileAttributes attributes ) {
+        return directory.resolve( hash( path ) + "-" + attributes.fileKey() + "-" + attributes.size()
+                + "-" + attributes.lastModifiedTime().toMillis() );
+    }
+
+    /**
+     * Returns a read only channel for the local copy of <code>path</code>,
+     * downloading it first if there is no entry for the version described by
+     * <code>attributes</code>, which must come from a remote stat rather
+     * than a cache. Returns null for anything that is not a regular file, is
+     * too big to cache or changed while being downloaded.
+     */
+    FileChannel open( UnixSshPath path, BasicFileAttributes attributes ) throws IOException {
+        FileChannel channel = get( path, attributes );
+        return channel == null ? fill( path, attributes ) : channel;
+    }
+
+    /**
+     * Returns a read only channel for the local copy of <code>path</code> if
+     * there is an entry for the version described by <code>attributes</code>,
+     * which must come from a remote stat rather than a cache, otherwise
+     * null.
+     */
+    FileChannel get( UnixSshPath path, BasicFileAttributes attributes ) throws IOException {
+        if ( !attributes.isRegularFile() || attributes.size() > maximumSize ) {
+            return null;
+        }
+
+        Path entry = entry( path, attributes );
+        FileChannel channel;
+        try {
+            channel = FileChannel.open( entry, StandardOpenOption.READ );
+        }
+        catch ( NoSuchFileException e ) {
+            synchronized ( this ) {
+                misses++;
+            }
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime( entry, FileTime.fromMillis( System.currentTimeMillis() ) );
+        }
+        catch ( NoSuchFileException e ) {
+            // evicted since we opened it, so it does not count as used, but
+            // the open channel still reads it fine
+        }
+        catch ( IOException e ) {
+            channel.close();
+            throw e;
+        }
+        synchronized ( this ) {
+            hits++;
+        }
+        return channel;
+    }
+
+    /**
+     * Downloads <code>path</code>, as described by <code>attributes</code>,
+     * into the cache and returns a read only channel for the local copy, or
+     * null if it is not a regular file, is too big to cache or changed
+     * while being downloaded.
+     */
+    FileChannel fill( UnixSshPath path, BasicFileAttributes attributes ) throws IOException {
+        if ( !attributes.isRegularFile() || attributes.size() > maximumSize ) {
+            return null;
+        }
+
+        Path entry = entry( path, attributes );
+        String prefix = hash( path ) + "-";
+        logger.debug( "caching {} as {}", path, entry );
+        Path temp = Files.createTempFile( directory, prefix, TEMP_SUFFIX );
+        try {
+            new UnixSshParallelTransfer( path, parallelism, null ).download( temp );
+            BasicFileAttributes downloaded = path.getFileSystem().provider().readAttributesRemote( path );
+            if ( Files.size( temp ) != attributes.size()
+                    || !entry.equals( entry( path, downloaded ) ) ) {
+                // changed while we were downloading, don't cache it under
+                // the wrong version
+                logger.debug( "{} changed while being cached", path );
+                return null;
+            }
+            Files.move( temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        }
+        finally {
+            Files.deleteIfExists( temp );
+        }
+
+        // older versions of this file will never be valid again
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream( directory, prefix + "*" )) {
+            for ( Path stale : stream ) {
+                if ( !stale.equals( entry ) && !stale.getFileName().toString().endsWith( TEMP_SUFFIX ) ) {
+                    Files.deleteIfExists( stale );
+                }
+            }
+        }
+
+        FileChannel channel = FileChannel.open( entry, StandardOpenOption.READ );
+        evict();
+        return channel;
+    }
+}
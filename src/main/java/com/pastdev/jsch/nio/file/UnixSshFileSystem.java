@@ -7,9 +7,10 @@ import static com.pastdev.jsch.nio.file.UnixSshFileSystemProvider.PATH_SEPARATOR
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.FileStore;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.UserPrincipal;
@@ -20,6 +21,11 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 
@@ -27,8 +33,21 @@ import com.jcraft.jsch.JSchException;
 
 
 public class UnixSshFileSystem extends AbstractSshFileSystem {
+    private UnixSshAttributeCache attributeCache;
+    private boolean attributeCacheInitialized;
+    private UnixSshBlockCache blockCache;
+    private boolean blockCacheInitialized;
+    private UnixSshBufferPool bufferPool = new UnixSshBufferPool();
+    private boolean closed;
     private UnixSshPath defaultDirectory;
+    private UnixSshDiskCache diskCache;
+    private boolean diskCacheInitialized;
+    private ExecutorService executorService;
+    private UnixSshListedAttributes listedAttributes;
+    private UnixSshReadAheadStatistics readAheadStatistics = new UnixSshReadAheadStatistics();
     private UnixSshPath rootDirectory;
+    private UnixSshShellMultiplexer shellMultiplexer;
+    private boolean shellMultiplexerInitialized;
 
     public UnixSshFileSystem( UnixSshFileSystemProvider provider, URI uri, Map<String, ?> environment ) throws IOException {
         super( provider, uri, environment );
@@ -43,20 +62,138 @@ public class UnixSshFileSystem extends AbstractSshFileSystem {
 
     @Override
     public void close() throws IOException {
+        synchronized ( this ) {
+            closed = true;
+            if ( executorService != null ) {
+                executorService.shutdown();
+                executorService = null;
+            }
+            if ( shellMultiplexer != null ) {
+                shellMultiplexer.close();
+                shellMultiplexer = null;
+            }
+        }
         getCommandRunner().close();
         provider().removeFileSystem( this );
     }
 
+    /**
+     * Returns the attribute cache for this file system, or null unless
+     * <code>cache.attributes.ttl</code> or
+     * <code>cache.attributes.missing.ttl</code> is set in the environment.
+     */
+    public synchronized UnixSshAttributeCache getAttributeCache() {
+        if ( !attributeCacheInitialized ) {
+            attributeCacheInitialized = true;
+            Long ttl = getLongFromEnvironment( "cache.attributes.ttl" );
+            Long missingTtl = getLongFromEnvironment( "cache.attributes.missing.ttl" );
+            if ( ttl != null || missingTtl != null ) {
+                TimeUnit timeUnit = getTimeUnitFromEnvironment( "cache.attributes.timeunit" );
+                if ( timeUnit == null ) {
+                    timeUnit = TimeUnit.SECONDS;
+                }
+                attributeCache = new UnixSshAttributeCache(
+                        ttl == null ? 0 : timeUnit.toMillis( ttl ),
+                        missingTtl == null ? 0 : timeUnit.toMillis( missingTtl ) );
+            }
+        }
+        return attributeCache;
+    }
+
+    /**
+     * Returns the block cache shared by the channels and streams of this file
+     * system, or null unless <code>cache.blocks</code> is enabled in the
+     * environment.
+     */
+    public synchronized UnixSshBlockCache getBlockCache() {
+        if ( !blockCacheInitialized ) {
+            blockCacheInitialized = true;
+            if ( getBooleanFromEnvironment( "cache.blocks" ) ) {
+                Long blockSize = getLongFromEnvironment( "cache.blocks.blocksize" );
+                Long budget = getLongFromEnvironment( "cache.blocks.budget" );
+                blockCache = new UnixSshBlockCache(
+                        blockSize == null ? UnixSshBlockCache.DEFAULT_BLOCK_SIZE : blockSize.intValue(),
+                        budget == null ? UnixSshBlockCache.DEFAULT_BUDGET : budget,
+                        getBooleanFromEnvironment( "cache.blocks.offheap" ) );
+            }
+        }
+        return blockCache;
+    }
+
+    UnixSshBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     UnixSshPath getDefaultDirectory() {
         return defaultDirectory;
     }
 
+    /**
+     * Returns the executor used for background work such as read-ahead
+     * prefetching. Created on first use with daemon threads so that it never
+     * keeps the jvm alive, and shut down when this file system is closed,
+     * after which asking for it throws {@link ClosedFileSystemException}.
+     */
+    synchronized ExecutorService getExecutorService() {
+        if ( closed ) {
+            throw new ClosedFileSystemException();
+        }
+        if ( executorService == null ) {
+            final String prefix = "jsch-nio-" + getUri().getHost() + "-";
+            executorService = Executors.newCachedThreadPool( new ThreadFactory() {
+                private AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread( Runnable runnable ) {
+                    Thread thread = new Thread( runnable, prefix + count.incrementAndGet() );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+        return executorService;
+    }
+
+    /**
+     * Returns the local disk cache for this file system, or null unless
+     * <code>cache.dir</code> is set in the environment.
+     */
+    public synchronized UnixSshDiskCache getDiskCache() throws IOException {
+        if ( !diskCacheInitialized ) {
+            String directory = getStringFromEnvironment( "cache.dir" );
+            if ( directory != null ) {
+                Long maximumSize = getLongFromEnvironment( "cache.dir.size" );
+                Long parallelism = getLongFromEnvironment( "cache.dir.parallelism" );
+                diskCache = new UnixSshDiskCache( Paths.get( directory ),
+                        maximumSize == null ? UnixSshDiskCache.DEFAULT_MAXIMUM_SIZE : maximumSize,
+                        parallelism == null ? UnixSshDiskCache.DEFAULT_PARALLELISM : parallelism.intValue() );
+            }
+            diskCacheInitialized = true;
+        }
+        return diskCache;
+    }
+
     @Override
     public Iterable<FileStore> getFileStores() {
         // TODO Auto-generated method stub
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Returns what decides whether the attributes read by directory listings
+     * may still be served, for up to the attribute cache's ttl, or null if
+     * no ttl is set, in which case they are not served at all.
+     */
+    synchronized UnixSshListedAttributes getListedAttributes() {
+        if ( listedAttributes == null ) {
+            UnixSshAttributeCache attributeCache = getAttributeCache();
+            if ( attributeCache != null && attributeCache.getTtl() > 0 ) {
+                listedAttributes = new UnixSshListedAttributes( attributeCache.getTtl() );
+            }
+        }
+        return listedAttributes;
+    }
+
     @Override
     public UnixSshPath getPath( String first, String... more ) {
         if ( more == null || more.length == 0 ) return new UnixSshPath( this, first );
@@ -70,7 +207,7 @@ public class UnixSshFileSystem extends AbstractSshFileSystem {
     }
 
     @Override
-    public PathMatcher getPathMatcher( String syntaxAndPattern ) {
+    public UnixSshPathMatcher getPathMatcher( String syntaxAndPattern ) {
         int firstColon = syntaxAndPattern.indexOf( ':' );
         if ( firstColon == -1 ) {
             throw new IllegalArgumentException( "must be of the form 'syntax:pattern'" );
@@ -78,6 +215,7 @@ public class UnixSshFileSystem extends AbstractSshFileSystem {
 
         String syntax = syntaxAndPattern.substring( 0, firstColon );
         String patternString = syntaxAndPattern.substring( firstColon + 1 );
+        String originalPatternString = patternString;
 
         if ( syntax.equalsIgnoreCase( "glob" ) ) {
             StringBuilder builder = new StringBuilder().append( '^' );
@@ -188,13 +326,15 @@ public class UnixSshFileSystem extends AbstractSshFileSystem {
             throw new UnsupportedOperationException( "i dont have any clue what '" + syntax + "' is supposed to mean" );
         }
 
-        final Pattern pattern = Pattern.compile( patternString );
-        return new PathMatcher() {
-            @Override
-            public boolean matches( Path path ) {
-                return pattern.matcher( path.toString() ).matches();
-            }
-        };
+        return new UnixSshPathMatcher( syntax, originalPatternString, Pattern.compile( patternString ) );
+    }
+
+    /**
+     * Returns the read-ahead statistics accumulated by all the
+     * {@link UnixSshSeekableByteChannel}'s opened on this file system.
+     */
+    public UnixSshReadAheadStatistics getReadAheadStatistics() {
+        return readAheadStatistics;
     }
 
     @Override
@@ -208,6 +348,25 @@ public class UnixSshFileSystem extends AbstractSshFileSystem {
         return PATH_SEPARATOR_STRING;
     }
 
+    /**
+     * Returns the pool of long lived shells the provider runs its commands
+     * on, or null unless <code>shell.multiplexer</code> is enabled in the
+     * environment, in which case <code>shell.multiplexer.shells</code> caps
+     * the number of shells.
+     */
+    public synchronized UnixSshShellMultiplexer getShellMultiplexer() {
+        if ( !shellMultiplexerInitialized ) {
+            shellMultiplexerInitialized = true;
+            if ( getBooleanFromEnvironment( "shell.multiplexer" ) ) {
+                Long maximumShells = getLongFromEnvironment( "shell.multiplexer.shells" );
+                shellMultiplexer = new UnixSshShellMultiplexer( this, maximumShells == null
+                        ? UnixSshShellMultiplexer.DEFAULT_MAXIMUM_SHELLS
+                        : maximumShells.intValue() );
+            }
+        }
+        return shellMultiplexer;
+    }
+
     @Override
     public UserPrincipalLookupService getUserPrincipalLookupService() {
         return new UserPrincipalLookupService() {
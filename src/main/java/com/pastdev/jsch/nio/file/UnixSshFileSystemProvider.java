@@ -1,16 +1,19 @@
 package com.pastdev.jsch.nio.file;
 
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
-import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.AccessMode;
 import java.nio.file.AtomicMoveNotSupportedException;
@@ -21,7 +24,10 @@ import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitor;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
@@ -41,10 +47,13 @@ import java.nio.file.attribute.PosixFilePermissions;
 import java.nio.file.attribute.UserPrincipal;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,7 +69,19 @@ import org.slf4j.LoggerFactory;
 
 public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
     private static Logger logger = LoggerFactory.getLogger( UnixSshFileSystemProvider.class );
-    private static final String ASCII_UNIT_SEPARATOR = Character.toString( (char)31 );
+    // key under which the access mask is kept alongside cached attributes
+    private static final String ACCESS_ATTRIBUTE = "access";
+    private static final int ACCESS_EXECUTE = 1;
+    private static final int ACCESS_READ = 4;
+    private static final int ACCESS_WRITE = 2;
+    static final String ASCII_RECORD_SEPARATOR = Character.toString( (char)30 );
+    static final String ASCII_UNIT_SEPARATOR = Character.toString( (char)31 );
+    // exit codes of our own scripts, clear of anything the tools they run use
+    static final int EXIT_NO_SUCH_FILE = 80;
+    static final int EXIT_NOT_DIRECTORY = 81;
+    static final int EXIT_FILE_EXISTS = 82;
+    static final int EXIT_DIRECTORY_NOT_EMPTY = 83;
+    static final int EXIT_CROSS_DEVICE = 84;
     private static final SupportedAttribute[] BASIC_SUPPORTED_ATTRIBUTES = new SupportedAttribute[] {
             SupportedAttribute.creationTime,
             SupportedAttribute.fileKey,
@@ -71,6 +92,9 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
             SupportedAttribute.lastAccessTime,
             SupportedAttribute.lastModifiedTime,
             SupportedAttribute.size };
+    // well under the smallest ARG_MAX of any system we might be talking to
+    static final int MAX_ARGUMENTS_LENGTH = 64 * 1024;
+    static final int MAX_BLOCK_SIZE = 1024 * 1024;
     public static final char PATH_SEPARATOR = '/';
     public static final String PATH_SEPARATOR_STRING = "/";
     private static final SupportedAttribute[] POSIX_ADDITIONAL_SUPPORTED_ATTRIBUTES = new SupportedAttribute[] {
@@ -79,6 +103,8 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
             SupportedAttribute.group };
     public static final String SCHEME_SSH_UNIX = "ssh.unix";
     private static final SimpleDateFormat TOUCH_DATE_FORMAT = new SimpleDateFormat( "yyyyMMddHHmm.ss" );
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    static final int WRITE_BLOCK_SIZE = 64 * 1024;
 
     private Map<URI, UnixSshFileSystem> fileSystemMap;
 
@@ -96,29 +122,70 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
         return (UnixSshPath)path;
     }
 
+    /**
+     * Returns the script that leaves the access mask of <code>path</code>,
+     * made of {@link #ACCESS_READ}, {@link #ACCESS_WRITE} and
+     * {@link #ACCESS_EXECUTE}, in <code>$m</code> for the caller to print,
+     * or exits with {@link #EXIT_NO_SUCH_FILE} if it does not exist.
+     */
+    private String accessCommand( UnixSshPath path ) {
+        String pathString = path.quotedString();
+        String testCommand = path.getFileSystem().getCommand( "test" );
+        return testCommand + " -e " + pathString + " || exit " + EXIT_NO_SUCH_FILE + "; m=0; "
+                + testCommand + " -r " + pathString + " && m=$((m+" + ACCESS_READ + ")); "
+                + testCommand + " -w " + pathString + " && m=$((m+" + ACCESS_WRITE + ")); "
+                + testCommand + " -x " + pathString + " && m=$((m+" + ACCESS_EXECUTE + ")); ";
+    }
+
+    /**
+     * Returns the cached attributes, including the access mask, of
+     * <code>path</code>, reading and caching them if need be, or null if
+     * the file system does not cache attributes.
+     */
+    private Map<String, Object> cachedAttributes( UnixSshPath path ) throws IOException {
+        UnixSshAttributeCache attributeCache = path.getFileSystem().getAttributeCache();
+        if ( attributeCache == null ) {
+            return null;
+        }
+        if ( attributeCache.isMissing( path ) ) {
+            throw new NoSuchFileException( path.toString() );
+        }
+        if ( attributeCache.getTtl() == 0 ) {
+            return null;
+        }
+        Map<String, Object> cached = attributeCache.get( path );
+        if ( cached == null ) {
+            // a full stat costs the same round trip, and serves whatever
+            // gets asked for next
+            cached = readAttributesUncached( path, SupportedAttribute.values(), true );
+            attributeCache.put( path, cached );
+        }
+        return cached;
+    }
+
+    /**
+     * Checks existence and every requested mode with a single remote command,
+     * or none at all when the attributes of <code>path</code> are cached.
+     */
     @Override
     public void checkAccess( Path path, AccessMode... modes ) throws IOException {
         UnixSshPath unixPath = checkPath( path ).toAbsolutePath();
         String pathString = unixPath.toAbsolutePath().quotedString();
 
-        String testCommand = unixPath.getFileSystem().getCommand( "test" );
-        if ( execute( unixPath, testCommand + " -e " + pathString ).getExitCode() != 0 ) {
+        int access;
+        try {
+            Map<String, Object> cached = cachedAttributes( unixPath );
+            access = cached == null ? readAccess( unixPath ) : (Integer)cached.get( ACCESS_ATTRIBUTE );
+        }
+        catch ( NoSuchFileException e ) {
             throw new NoSuchFileException( pathString );
         }
 
-        Set<AccessMode> modesSet = toSet( modes );
-        if ( modesSet.contains( AccessMode.READ ) ) {
-            if ( execute( unixPath, testCommand + " -r " + pathString ).getExitCode() != 0 ) {
-                throw new AccessDeniedException( pathString );
-            }
-        }
-        if ( modesSet.contains( AccessMode.WRITE ) ) {
-            if ( execute( unixPath, testCommand + " -w " + pathString ).getExitCode() != 0 ) {
-                throw new AccessDeniedException( pathString );
-            }
-        }
-        if ( modesSet.contains( AccessMode.EXECUTE ) ) {
-            if ( execute( unixPath, testCommand + " -x " + pathString ).getExitCode() != 0 ) {
+        for ( AccessMode mode : modes ) {
+            int required = mode == AccessMode.READ ? ACCESS_READ
+                    : mode == AccessMode.WRITE ? ACCESS_WRITE
+                    : ACCESS_EXECUTE;
+            if ( (access & required) == 0 ) {
                 throw new AccessDeniedException( pathString );
             }
         }
@@ -129,39 +196,187 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
         copyOrMove( "cp", from, to, copyOptions );
     }
 
+    /**
+     * Copies or moves <code>from</code> to <code>to</code> with a single
+     * remote script, which checks for the source, tells whether the target
+     * is the same file (same device and inode, as <code>test -ef</code>
+     * sees it), clears the way for {@link StandardCopyOption#REPLACE_EXISTING}
+     * and runs <code>cp</code> or <code>mv</code>. An
+     * {@link StandardCopyOption#ATOMIC_MOVE} is a plain rename, and fails
+     * with an {@link AtomicMoveNotSupportedException} if the target is on
+     * another device, where <code>mv</code> would fall back to copying.
+     */
     public void copyOrMove( String cpOrMv, Path from, Path to, CopyOption... copyOptions ) throws IOException {
         UnixSshPath unixFrom = checkPath( from );
         UnixSshPath unixTo = checkPath( to );
 
         Set<CopyOption> options = toSet( copyOptions );
-        if ( options.contains( StandardCopyOption.ATOMIC_MOVE ) ) {
-            throw new AtomicMoveNotSupportedException( from.toString(), to.toString(),
-                    "to complicated to think about right now, try again at a later release." );
+        boolean atomic = options.contains( StandardCopyOption.ATOMIC_MOVE );
+        if ( atomic && !cpOrMv.equals( "mv" ) ) {
+            throw new UnsupportedOperationException( "atomic move is not a copy option" );
+        }
+
+        UnixSshFileSystem fileSystem = unixFrom.getFileSystem();
+        String fromString = unixFrom.toAbsolutePath().quotedString();
+        String toString = unixTo.toAbsolutePath().quotedString();
+        String testCommand = fileSystem.getCommand( "test" );
+        StringBuilder commandBuilder = new StringBuilder()
+                .append( testCommand ).append( " -e " ).append( fromString ).append( " || " )
+                .append( testCommand ).append( " -L " ).append( fromString )
+                .append( " || exit " ).append( EXIT_NO_SUCH_FILE ).append( "; " );
+        if ( atomic ) {
+            // rename only works within a device, where mv does nothing else
+            UnixSshPath toParent = unixTo.toAbsolutePath().getParent();
+            String statCommand = fileSystem.getCommand( "stat" );
+            String deviceFormat = fileSystem.getVariant( "stat" ) == Variant.BSD ? " -f %d " : " -c %d ";
+            commandBuilder.append( "f=$(" ).append( statCommand ).append( deviceFormat ).append( fromString )
+                    .append( ") && t=$(" ).append( statCommand ).append( " -L" ).append( deviceFormat )
+                    .append( toParent == null ? toString : toParent.quotedString() )
+                    .append( ") || exit 1; " ).append( testCommand ).append( " \"$f\" = \"$t\" || exit " )
+                    .append( EXIT_CROSS_DEVICE ).append( "; " );
+            if ( fileSystem.getVariant( "mv" ) == Variant.BSD ) {
+                // without -T, mv would move into an existing directory
+                commandBuilder.append( testCommand ).append( " -d " ).append( toString ).append( " && ! " )
+                        .append( testCommand ).append( " -L " ).append( toString )
+                        .append( " && exit " ).append( EXIT_FILE_EXISTS ).append( "; " )
+                        .append( fileSystem.getCommand( "mv" ) ).append( " -f " );
+            }
+            else {
+                commandBuilder.append( fileSystem.getCommand( "mv" ) ).append( " -T " );
+            }
         }
-
-        BasicFileAttributesImpl fromAttributes = new BasicFileAttributesImpl( unixFrom );
-
-        if ( exists( unixTo ) ) {
-            PosixFileAttributesImpl toAttributes = new PosixFileAttributesImpl( unixTo );
-            if ( fromAttributes.isSameFile( toAttributes ) ) return;
+        else {
+            commandBuilder.append( "if " ).append( testCommand ).append( " -e " ).append( toString ).append( " || " )
+                    .append( testCommand ).append( " -L " ).append( toString ).append( "; then " )
+                    .append( testCommand ).append( " " ).append( fromString ).append( " -ef " ).append( toString )
+                    .append( " && exit 0; " );
             if ( options.contains( StandardCopyOption.REPLACE_EXISTING ) ) {
-                delete( unixTo, toAttributes );
+                commandBuilder.append( "if " ).append( testCommand ).append( " -d " ).append( toString )
+                        .append( " && ! " ).append( testCommand ).append( " -L " ).append( toString ).append( "; then " )
+                        .append( fileSystem.getCommand( "rmdir" ) ).append( " " ).append( toString )
+                        .append( " 2> /dev/null || exit " ).append( EXIT_DIRECTORY_NOT_EMPTY ).append( "; else " )
+                        .append( fileSystem.getCommand( "rm" ) ).append( " -f " ).append( toString )
+                        .append( " || exit 1; fi; " );
             }
             else {
+                commandBuilder.append( "exit " ).append( EXIT_FILE_EXISTS ).append( "; " );
+            }
+            commandBuilder.append( "fi; " ).append( fileSystem.getCommand( cpOrMv ) ).append( " " );
+        }
+        commandBuilder.append( fromString ).append( " " ).append( toString );
+
+        String command = commandBuilder.toString();
+        ExecuteResult result;
+        try {
+            result = execute( unixTo, command );
+        }
+        finally {
+            invalidateAttributes( unixFrom );
+            invalidateAttributes( unixTo );
+        }
+        switch ( result.getExitCode() ) {
+            case 0:
+                return;
+            case EXIT_NO_SUCH_FILE:
+                throw new NoSuchFileException( from.toString() );
+            case EXIT_FILE_EXISTS:
                 throw new FileAlreadyExistsException( to.toString() );
+            case EXIT_DIRECTORY_NOT_EMPTY:
+                throw new DirectoryNotEmptyException( to.toString() );
+            case EXIT_CROSS_DEVICE:
+                throw new AtomicMoveNotSupportedException( from.toString(), to.toString(),
+                        "source and target are on different devices" );
+            default:
+                throw new UnixSshCommandFailedException( command, result );
+        }
+    }
+
+    /**
+     * Copies the tree at <code>from</code> to <code>to</code> entirely on
+     * the remote system.
+     * 
+     * @see #copyRecursively(Path, Path, UnixSshCopyListener, CopyOption...)
+     */
+    public void copyRecursively( Path from, Path to, CopyOption... copyOptions ) throws IOException {
+        copyRecursively( from, to, null, copyOptions );
+    }
+
+    /**
+     * Copies the tree at <code>from</code> to <code>to</code> with a single
+     * remote script, so that no file crosses the wire and the number of
+     * round trips does not grow with the number of entries. Honors
+     * {@link StandardCopyOption#REPLACE_EXISTING},
+     * {@link StandardCopyOption#COPY_ATTRIBUTES} and
+     * {@link LinkOption#NOFOLLOW_LINKS}.
+     * 
+     * @param from
+     *            The file or directory to copy
+     * @param to
+     *            Where to copy it to
+     * @param listener
+     *            Notified of each entry copied or failed, may be null
+     * @param copyOptions
+     *            Options specifying how the copy should be done
+     * @throws IOException
+     *             If any entry failed to copy, once every other entry has
+     *             been copied
+     * @see UnixSshRecursiveCopy
+     */
+    public void copyRecursively( Path from, Path to, UnixSshCopyListener listener, CopyOption... copyOptions ) throws IOException {
+        copyOrMoveRecursively( false, from, to, listener, copyOptions );
+    }
+
+    private void copyOrMoveRecursively( boolean move, Path from, Path to, UnixSshCopyListener listener, CopyOption... copyOptions ) throws IOException {
+        UnixSshPath unixFrom = checkPath( from );
+        UnixSshPath unixTo = checkPath( to );
+        if ( unixTo.toAbsolutePath().startsWith( unixFrom.toAbsolutePath() ) ) {
+            if ( unixTo.toAbsolutePath().equals( unixFrom.toAbsolutePath() ) ) {
+                return;
             }
+            throw new IOException( "cannot copy " + from + " into itself at " + to );
+        }
+        try {
+            new UnixSshRecursiveCopy( unixFrom, unixTo, move, toSet( copyOptions ), listener ).run();
         }
+        finally {
+            if ( move ) {
+                invalidateAttributes( unixFrom );
+            }
+            invalidateAttributes( unixTo );
+        }
+    }
 
-        String command = unixFrom.getFileSystem().getCommand( cpOrMv )
-                + " " + unixFrom.toAbsolutePath().quotedString() 
-                + " " + unixTo.toAbsolutePath().quotedString();
-        executeForStdout( unixTo, command );
+    /**
+     * Creates <code>path</code> along with any missing parent directories,
+     * as {@link java.nio.file.Files#createDirectories(Path, FileAttribute...)}
+     * does, but with a single <code>mkdir -p</code> rather than a stat and
+     * a <code>mkdir</code> for each level. Permissions in
+     * <code>fileAttributes</code> apply to every directory created, except
+     * that parents are always left writable and searchable by their owner,
+     * so that what goes under them can be created.
+     * 
+     * @param path
+     *            The directory to create
+     * @param fileAttributes
+     *            Attributes to set on the directories created, only
+     *            <code>posix:permissions</code> is supported
+     * @throws FileAlreadyExistsException
+     *             If <code>path</code> exists but is not a directory
+     * @throws IOException
+     *             If a parent exists but is not a directory, or a directory
+     *             could not be created
+     */
+    public void createDirectories( Path path, FileAttribute<?>... fileAttributes ) throws IOException {
+        createDirectory( checkPath( path ), true, fileAttributes );
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public void createDirectory( Path path, FileAttribute<?>... fileAttributes ) throws IOException {
-        UnixSshPath unixPath = checkPath( path );
+        createDirectory( checkPath( path ), false, fileAttributes );
+    }
+
+    @SuppressWarnings("unchecked")
+    private void createDirectory( UnixSshPath path, boolean parents, FileAttribute<?>... fileAttributes ) throws IOException {
         Set<PosixFilePermission> permissions = null;
         for ( FileAttribute<?> fileAttribute : fileAttributes ) {
             if ( fileAttribute.name().equals( "posix:permissions" ) ) {
@@ -169,70 +384,301 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
             }
         }
 
-        StringBuilder commandBuilder = new StringBuilder( unixPath.getFileSystem().getCommand( "mkdir" ) )
-                .append( " " );
-        if ( permissions != null ) {
-            commandBuilder.append( "-m " ).append( toMode( permissions ) );
+        UnixSshFileSystem fileSystem = path.getFileSystem();
+        UnixSshPath absolutePath = path.toAbsolutePath();
+        String pathString = absolutePath.quotedString();
+        String testCommand = fileSystem.getCommand( "test" );
+        String mode = permissions == null ? null : toMode( permissions );
+        StringBuilder commandBuilder = new StringBuilder();
+        if ( parents && mode != null ) {
+            // -m only applies to the last directory, the umask to the rest
+            commandBuilder.append( "( umask " );
+            for ( char digit : mode.toCharArray() ) {
+                commandBuilder.append( 7 - (digit - '0') );
+            }
+            commandBuilder.append( "; " );
         }
-        commandBuilder.append( unixPath.toAbsolutePath().quotedString() );
-        executeForStdout( unixPath, commandBuilder.toString() );
-    }
+        commandBuilder.append( fileSystem.getCommand( "mkdir" ) );
+        if ( parents ) {
+            commandBuilder.append( " -p" );
+        }
+        if ( mode != null ) {
+            commandBuilder.append( " -m " ).append( mode );
+        }
+        commandBuilder.append( " " ).append( pathString );
+        if ( parents && mode != null ) {
+            commandBuilder.append( " )" );
+        }
+        commandBuilder.append( " || { " ).append( testCommand ).append( " -e " ).append( pathString ).append( " || " )
+                .append( testCommand ).append( " -L " ).append( pathString ).append( " && exit " )
+                .append( EXIT_FILE_EXISTS ).append( "; " );
+        UnixSshPath parent = absolutePath.getParent();
+        if ( !parents && parent != null ) {
+            commandBuilder.append( testCommand ).append( " -d " ).append( parent.quotedString() )
+                    .append( " || exit " ).append( EXIT_NO_SUCH_FILE ).append( "; " );
+        }
+        commandBuilder.append( "exit 1; }" );
 
-    @SuppressWarnings("unchecked")
-    PosixFileAttributes createFile( UnixSshPath path, FileAttribute<?>... fileAttributes ) throws IOException {
-        Set<PosixFilePermission> permissions = null;
-        UserPrincipal owner = null;
-        GroupPrincipal group = null;
-        for ( FileAttribute<?> fileAttribute : fileAttributes ) {
-            String name = fileAttribute.name();
-            if ( name.equals( "posix:permissions" ) ) {
-                permissions = (Set<PosixFilePermission>)fileAttribute.value();
-            }
-            else if ( name.equals( "posix:owner" ) ) {
-                owner = (UserPrincipal)fileAttribute.value();
-            }
-            else if ( name.equals( "posix:group" ) ) {
-                group = (GroupPrincipal)fileAttribute.value();
+        String command = commandBuilder.toString();
+        ExecuteResult result;
+        try {
+            result = execute( absolutePath, command );
+        }
+        finally {
+            invalidateAttributes( path );
+            UnixSshAttributeCache attributeCache = fileSystem.getAttributeCache();
+            UnixSshListedAttributes listedAttributes = fileSystem.getListedAttributes();
+            if ( parents && attributeCache != null ) {
+                // any of them may have been created along the way
+                for ( UnixSshPath ancestor = parent; ancestor != null; ancestor = ancestor.getParent() ) {
+                    attributeCache.invalidateEntry( ancestor );
+                    if ( listedAttributes != null ) {
+                        listedAttributes.changedEntry( ancestor );
+                    }
+                }
             }
         }
+        if ( result.getExitCode() == EXIT_FILE_EXISTS ) {
+            throw new FileAlreadyExistsException( path.toString() );
+        }
+        if ( result.getExitCode() == EXIT_NO_SUCH_FILE ) {
+            throw new NoSuchFileException( path.toString() );
+        }
+        if ( result.getExitCode() != 0 ) {
+            throw new UnixSshCommandFailedException( command, result );
+        }
+    }
 
-        // TODO i think this can be done with dd atomically
-        String command = path.getFileSystem().getCommand( "touch" ) + " " + path.toAbsolutePath().quotedString();
-        executeForStdout( path, command );
+    @Override
+    public void delete( Path path ) throws IOException {
+        UnixSshPath unixPath = checkPath( path );
+        UnixSshFileSystem fileSystem = unixPath.getFileSystem();
+        String pathString = unixPath.toAbsolutePath().quotedString();
+        String testCommand = fileSystem.getCommand( "test" );
+        // the script tells rmdir from unlink, rather than a stat beforehand
+        String command = testCommand + " -e " + pathString + " || " + testCommand + " -L " + pathString
+                + " || exit " + EXIT_NO_SUCH_FILE + "; if " + testCommand + " -d " + pathString
+                + " && ! " + testCommand + " -L " + pathString + "; then "
+                + fileSystem.getCommand( "rmdir" ) + " " + pathString + " 2> /dev/null || exit "
+                + EXIT_DIRECTORY_NOT_EMPTY + "; else "
+                + fileSystem.getCommand( "unlink" ) + " " + pathString + "; fi";
+        ExecuteResult result;
+        try {
+            result = execute( unixPath, command );
+        }
+        finally {
+            invalidateAttributes( unixPath );
+        }
+        if ( result.getExitCode() == EXIT_NO_SUCH_FILE ) {
+            missing( unixPath.toAbsolutePath() );
+        }
+        if ( result.getExitCode() == EXIT_DIRECTORY_NOT_EMPTY ) {
+            throw new DirectoryNotEmptyException( path.toString() );
+        }
+        if ( result.getExitCode() != 0 ) {
+            throw new UnixSshCommandFailedException( command, result );
+        }
+    }
 
-        if ( permissions != null ) {
-            setPermissions( path, permissions );
+    /**
+     * Deletes every path in <code>paths</code>, along with anything under
+     * it, with as few remote commands as the length of their arguments
+     * allows. Paths that do not exist are ignored, as <code>rm -f</code>
+     * would.
+     * 
+     * @param paths
+     *            The files and directories to delete
+     * @throws IOException
+     *             If any path could not be deleted, once all the others have
+     *             been, with a {@link FileSystemException} for each failed
+     *             path among its suppressed exceptions
+     */
+    public void deleteRecursively( Collection<UnixSshPath> paths ) throws IOException {
+        List<FileSystemException> failures = new ArrayList<FileSystemException>();
+        List<UnixSshPath> batch = new ArrayList<UnixSshPath>();
+        int batchLength = 0;
+        for ( UnixSshPath path : paths ) {
+            UnixSshPath absolutePath = checkPath( path ).toAbsolutePath();
+            int length = absolutePath.quotedString().length() + 1;
+            if ( !batch.isEmpty() && (batchLength + length > MAX_ARGUMENTS_LENGTH
+                    || batch.get( 0 ).getFileSystem() != absolutePath.getFileSystem()) ) {
+                deleteRecursivelyBatch( batch, failures );
+                batch.clear();
+                batchLength = 0;
+            }
+            batch.add( absolutePath );
+            batchLength += length;
         }
-        if ( owner != null ) {
-            setOwner( path, owner );
+        if ( !batch.isEmpty() ) {
+            deleteRecursivelyBatch( batch, failures );
         }
-        if ( group != null ) {
-            setGroup( path, group );
+        if ( !failures.isEmpty() ) {
+            throw deleteRecursivelyFailed( failures );
         }
+    }
 
-        return readAttributes( path, PosixFileAttributes.class );
+    /**
+     * Deletes <code>path</code> and everything under it with a single remote
+     * command, rather than a stat and an <code>rmdir</code> or
+     * <code>unlink</code> per entry. A find hands the entries, deepest
+     * first, to <code>rm -rf</code> in batches, and only the entries that
+     * are still there afterwards are reported, as they are found.
+     * 
+     * @param path
+     *            The file or directory to delete
+     * @throws NoSuchFileException
+     *             If <code>path</code> does not exist
+     * @throws IOException
+     *             If any entry could not be deleted, once all the others
+     *             have been, with a {@link FileSystemException} for each
+     *             failed entry among its suppressed exceptions
+     */
+    public void deleteRecursively( Path path ) throws IOException {
+        UnixSshPath unixPath = checkPath( path );
+        UnixSshFileSystem fileSystem = unixPath.getFileSystem();
+        String pathString = unixPath.toAbsolutePath().quotedString();
+        String testCommand = fileSystem.getCommand( "test" );
+        String command = testCommand + " -e " + pathString + " || " + testCommand + " -L " + pathString
+                + " || exit " + EXIT_NO_SUCH_FILE + "; " + fileSystem.getCommand( "find" ) + " " + pathString
+                + " -depth -exec sh -c '" + deleteRecursivelyScript( fileSystem ) + "' sh {} +";
+        List<FileSystemException> failures = new ArrayList<FileSystemException>();
+        int exitCode;
+        try {
+            exitCode = deleteRecursively( unixPath, command, failures );
+        }
+        finally {
+            invalidateAttributes( unixPath );
+        }
+        if ( exitCode == EXIT_NO_SUCH_FILE ) {
+            missing( unixPath.toAbsolutePath() );
+        }
+        if ( !failures.isEmpty() ) {
+            throw deleteRecursivelyFailed( failures );
+        }
     }
 
-    @Override
-    public void delete( Path path ) throws IOException {
-        delete( checkPath( path ), new BasicFileAttributesImpl( path ) );
+    /**
+     * Runs <code>command</code>, adding each entry it reports as not deleted
+     * to <code>failures</code> as it arrives, and returns its exit code.
+     * Fails on a nonzero exit code that neither reports a failed entry nor
+     * is {@link #EXIT_NO_SUCH_FILE}.
+     */
+    private int deleteRecursively( UnixSshPath path, String command, List<FileSystemException> failures ) throws IOException {
+        ChannelExecWrapper channel;
+        try {
+            channel = path.getFileSystem().getCommandRunner().open( "{ " + command + "; } 2>&1" );
+        }
+        catch ( JSchException e ) {
+            throw new IOException( e );
+        }
+
+        int failed = failures.size();
+        StringBuilder output = new StringBuilder();
+        int exitCode;
+        try {
+            BufferedReader reader = new BufferedReader( new InputStreamReader( channel.getInputStream(), UTF8 ) );
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                int separator = line.indexOf( ASCII_UNIT_SEPARATOR );
+                if ( separator < 0 ) {
+                    // anything find or the script itself had to say
+                    output.append( line ).append( "\n" );
+                    continue;
+                }
+                String entry = line.substring( 0, separator );
+                String reason = line.substring( separator + 1 );
+                logger.debug( "could not delete {}: {}", entry, reason );
+                failures.add( new FileSystemException( entry, null, reason ) );
+            }
+        }
+        finally {
+            exitCode = channel.close();
+        }
+        if ( exitCode != 0 && exitCode != EXIT_NO_SUCH_FILE && failures.size() == failed ) {
+            throw new IOException( "deleting " + path + " failed with exit code " + exitCode
+                    + ": " + output.toString().trim() );
+        }
+        return exitCode;
     }
 
-    private void delete( UnixSshPath path, BasicFileAttributes attributes ) throws IOException {
-        if ( attributes.isDirectory() ) {
-            if ( execute( path, path.getFileSystem().getCommand( "rmdir" ) 
-                    + " " + path.toAbsolutePath().quotedString() )
-                    .getExitCode() != 0 ) {
-                throw new DirectoryNotEmptyException( path.toString() );
+    private void deleteRecursivelyBatch( List<UnixSshPath> batch, List<FileSystemException> failures ) throws IOException {
+        StringBuilder commandBuilder = new StringBuilder( "set --" );
+        for ( UnixSshPath path : batch ) {
+            commandBuilder.append( " " ).append( path.quotedString() );
+        }
+        commandBuilder.append( "; " ).append( deleteRecursivelyScript( batch.get( 0 ).getFileSystem() ) );
+        try {
+            deleteRecursively( batch.get( 0 ), commandBuilder.toString(), failures );
+        }
+        finally {
+            for ( UnixSshPath path : batch ) {
+                invalidateAttributes( path );
             }
         }
-        else {
-            executeForStdout( path, path.getFileSystem().getCommand( "unlink" ) 
-                    + " " + path.toAbsolutePath().quotedString() );
+    }
+
+    private static IOException deleteRecursivelyFailed( List<FileSystemException> failures ) {
+        IOException exception = new IOException( failures.size() + " entries could not be deleted, the first "
+                + failures.get( 0 ).getMessage() );
+        for ( FileSystemException failure : failures ) {
+            exception.addSuppressed( failure );
         }
+        return exception;
+    }
+
+    /**
+     * Returns the script that deletes its arguments with a single
+     * <code>rm -rf</code>, and prints each one still there afterwards along
+     * with why, as told by deleting it again on its own.
+     */
+    private String deleteRecursivelyScript( UnixSshFileSystem fileSystem ) {
+        String testCommand = fileSystem.getCommand( "test" );
+        String rmCommand = fileSystem.getCommand( "rm" );
+        // without globbing, echo $m joins a multi line message into one line
+        return "set -f; " + rmCommand + " -rf \"$@\" 2> /dev/null; r=0; for e; do if "
+                + testCommand + " -e \"$e\" || " + testCommand + " -L \"$e\"; then r=1; m=$("
+                + rmCommand + " -rf \"$e\" 2>&1); printf \"%s" + ASCII_UNIT_SEPARATOR + "\" \"$e\"; echo $m; fi; "
+                + "done; exit $r";
+    }
+
+    /**
+     * Downloads <code>path</code> to <code>localTarget</code> over
+     * <code>parallelism</code> concurrent exec channels.
+     * 
+     * @see #download(UnixSshPath, Path, int, UnixSshTransferListener)
+     */
+    public void download( UnixSshPath path, Path localTarget, int parallelism ) throws IOException {
+        download( path, localTarget, parallelism, null );
+    }
+
+    /**
+     * Downloads <code>path</code> to <code>localTarget</code> over
+     * <code>parallelism</code> concurrent exec channels on the file system's
+     * session. The file is split into ranges, each written into place in
+     * <code>localTarget</code> as it arrives, and a range that fails is
+     * retried from where it left off rather than restarting the whole
+     * transfer.
+     * 
+     * @param path
+     *            The remote file
+     * @param localTarget
+     *            The local file, replaced if it exists
+     * @param parallelism
+     *            The number of concurrent channels
+     * @param listener
+     *            Notified of progress and retries, may be null
+     * @throws IOException
+     *             If a range could not be transferred
+     */
+    public void download( UnixSshPath path, Path localTarget, int parallelism, UnixSshTransferListener listener ) throws IOException {
+        new UnixSshParallelTransfer( checkPath( path ), parallelism, listener ).download( localTarget );
     }
 
     private ExecuteResult execute( UnixSshPath path, String command ) throws IOException {
+        UnixSshShellMultiplexer shellMultiplexer = path.getFileSystem().getShellMultiplexer();
+        if ( shellMultiplexer != null ) {
+            return shellMultiplexer.execute( command );
+        }
         CommandRunner commandRunner = path.getFileSystem().getCommandRunner();
         try {
             return commandRunner.execute( command );
@@ -250,16 +696,6 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
         return result.getStdout();
     }
 
-    private boolean exists( Path path ) throws IOException {
-        try {
-            checkAccess( path );
-            return true;
-        }
-        catch ( NoSuchFileException e ) {
-            return false;
-        }
-    }
-
     UnixSshBasicFileAttributeView getFileAttributeView( Path path, String viewName, LinkOption... linkOptions ) {
         if ( viewName.equals( "basic" ) ) {
             return new UnixSshBasicFileAttributeView( checkPath( path ), linkOptions );
@@ -305,6 +741,52 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
         return SCHEME_SSH_UNIX;
     }
 
+    /**
+     * Drops any cached attributes of <code>path</code>, anything under it and
+     * its parent directory, whose modification time changes along with its
+     * entries, and forgets that anything in the parent directory was missing.
+     */
+    void invalidateAttributes( UnixSshPath path ) {
+        path.setAttributes( null, 0 );
+        UnixSshPath absolutePath = path.toAbsolutePath();
+        UnixSshPath parent = absolutePath.getParent();
+        UnixSshListedAttributes listedAttributes = path.getFileSystem().getListedAttributes();
+        if ( listedAttributes != null ) {
+            listedAttributes.changed( absolutePath );
+            if ( parent != null ) {
+                listedAttributes.changedEntry( parent );
+            }
+        }
+        UnixSshAttributeCache attributeCache = path.getFileSystem().getAttributeCache();
+        if ( attributeCache == null ) {
+            return;
+        }
+        attributeCache.invalidate( absolutePath );
+        if ( parent != null ) {
+            attributeCache.invalidateEntry( parent );
+        }
+    }
+
+    /**
+     * Forgets what is known about the attributes of the existing regular
+     * file at <code>path</code> after its content changed. Unlike
+     * {@link #invalidateAttributes(UnixSshPath)} this leaves the parent
+     * directory alone and costs the same however many entries are cached, as
+     * it runs on every write to a channel.
+     */
+    void invalidateFileAttributes( UnixSshPath path ) {
+        path.setAttributes( null, 0 );
+        UnixSshPath absolutePath = path.toAbsolutePath();
+        UnixSshListedAttributes listedAttributes = path.getFileSystem().getListedAttributes();
+        if ( listedAttributes != null ) {
+            listedAttributes.changedEntry( absolutePath );
+        }
+        UnixSshAttributeCache attributeCache = path.getFileSystem().getAttributeCache();
+        if ( attributeCache != null ) {
+            attributeCache.invalidateFile( absolutePath );
+        }
+    }
+
     @Override
     public boolean isHidden( Path path ) throws IOException {
         return checkPath( path ).getFileNameString().startsWith( "." );
@@ -326,11 +808,103 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
         return path1.getFileSystem().provider().equals( path2.getFileSystem().provider() );
     }
 
+    /**
+     * Returns the command that prints every entry of
+     * <code>directoryPath</code> that satisfies <code>findPredicate</code>,
+     * if not null, one per line as stat'ed by a single find, or exits with
+     * {@link #EXIT_NO_SUCH_FILE} or {@link #EXIT_NOT_DIRECTORY}. Entries that
+     * are gone by the time they are stat'ed are left out rather than failing
+     * the listing, as they come and go all the time in busy directories.
+     */
+    private String listDirectoryCommand( UnixSshPath directoryPath, String findPredicate ) {
+        UnixSshFileSystem fileSystem = directoryPath.getFileSystem();
+        String pathString = directoryPath.toAbsolutePath().quotedString();
+        String testCommand = fileSystem.getCommand( "test" );
+        return testCommand + " -e " + pathString + " || exit " + EXIT_NO_SUCH_FILE + "; "
+                + testCommand + " -d " + pathString + " || exit " + EXIT_NOT_DIRECTORY + "; "
+                + fileSystem.getCommand( "find" ) + " " + pathString + " -mindepth 1 -maxdepth 1"
+                + (findPredicate == null ? "" : " " + findPredicate) + " -exec sh -c '"
+                + statCommand( directoryPath, SupportedAttribute.values(), true )
+                + " \"$@\" 2> /dev/null; exit 0' sh {} +";
+    }
+
+    /**
+     * Returns the path described by a line of the output of
+     * {@link #listDirectoryCommand(UnixSshPath, String)} or
+     * {@link #walkCommand(UnixSshPath, int, boolean)} for <code>base</code>,
+     * resolved against it and carrying all of its attributes, as of a
+     * listing started at <code>listed</code> (as of
+     * {@link System#nanoTime()}).
+     */
+    UnixSshPath listedEntry( UnixSshPath base, String line, long listed ) {
+        Map<String, Object> attributes = statParse( line, SupportedAttribute.values() );
+        // find prints everything prefixed by base as it was given
+        String name = (String)attributes.get( SupportedAttribute.name.toString() );
+        String relative = name.substring( base.toAbsolutePath().toString().length() );
+        if ( relative.startsWith( PATH_SEPARATOR_STRING ) ) {
+            relative = relative.substring( 1 );
+        }
+        // a fresh path even for base itself, which must not carry attributes
+        UnixSshPath entry = relative.isEmpty()
+                ? base.getFileSystem().getPath( base.toString() )
+                : base.resolve( relative );
+        entry.setAttributes( attributes, listed );
+        return entry;
+    }
+
+    /**
+     * Remembers that <code>path</code> does not exist, if the file system
+     * caches that, and throws a NoSuchFileException for it.
+     */
+    private void missing( UnixSshPath path ) throws NoSuchFileException {
+        UnixSshAttributeCache attributeCache = path.getFileSystem().getAttributeCache();
+        if ( attributeCache != null ) {
+            attributeCache.putMissing( path );
+        }
+        throw new NoSuchFileException( path.toString() );
+    }
+
     @Override
     public void move( Path from, Path to, CopyOption... copyOptions ) throws IOException {
         copyOrMove( "mv", from, to, copyOptions );
     }
 
+    /**
+     * Moves the tree at <code>from</code> to <code>to</code> entirely on the
+     * remote system.
+     * 
+     * @see #moveRecursively(Path, Path, UnixSshCopyListener, CopyOption...)
+     */
+    public void moveRecursively( Path from, Path to, CopyOption... copyOptions ) throws IOException {
+        moveRecursively( from, to, null, copyOptions );
+    }
+
+    /**
+     * Moves the tree at <code>from</code> to <code>to</code> with a single
+     * remote script. That is a rename when <code>to</code> does not exist
+     * and is on the same device, otherwise a copy that keeps attributes and
+     * links, entry by entry, after which <code>from</code> is removed only if
+     * every entry was copied. Honors
+     * {@link StandardCopyOption#REPLACE_EXISTING}, which merges into an
+     * existing <code>to</code>.
+     * 
+     * @param from
+     *            The file or directory to move
+     * @param to
+     *            Where to move it to
+     * @param listener
+     *            Notified of each entry copied or failed, may be null
+     * @param copyOptions
+     *            Options specifying how the move should be done
+     * @throws IOException
+     *             If any entry failed to copy, in which case
+     *             <code>from</code> is left in place
+     * @see UnixSshRecursiveCopy
+     */
+    public void moveRecursively( Path from, Path to, UnixSshCopyListener listener, CopyOption... copyOptions ) throws IOException {
+        copyOrMoveRecursively( true, from, to, listener, copyOptions );
+    }
+
     @Override
     public SeekableByteChannel newByteChannel( Path path, Set<? extends OpenOption> openOptions, FileAttribute<?>... fileAttributes ) throws IOException {
         return new UnixSshSeekableByteChannel( checkPath( path ), openOptions, fileAttributes );
@@ -339,13 +913,24 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
     @Override
     public DirectoryStream<Path> newDirectoryStream( Path path, Filter<? super Path> filter ) throws IOException {
         UnixSshPath unixPath = checkPath( path );
-        String result = executeForStdout( unixPath, unixPath.getFileSystem().getCommand( "ls" )
-                + " -A -1 " + unixPath.toAbsolutePath().quotedString() );
-        String[] items = result.split( "\n" );
-        if ( items.length == 1 && items[0].isEmpty() ) {
-            items = null;
-        }
-        return new StandardDirectoryStream( path, items, filter );
+        String findPredicate = filter instanceof UnixSshPathMatcher
+                ? ((UnixSshPathMatcher)filter).findPredicate()
+                : null;
+        return new UnixSshDirectoryStream( unixPath, listDirectoryCommand( unixPath, findPredicate ), filter );
+    }
+
+    /**
+     * Opens a directory stream of the entries whose file name matches
+     * <code>glob</code>, as
+     * {@link java.nio.file.Files#newDirectoryStream(Path, String)} would,
+     * except that the remote find does the matching whenever the glob allows
+     * it, so only the matching entries cross the wire.
+     * 
+     * @see UnixSshPathMatcher
+     */
+    public DirectoryStream<Path> newDirectoryStream( Path path, String glob ) throws IOException {
+        UnixSshPath unixPath = checkPath( path );
+        return newDirectoryStream( unixPath, unixPath.getFileSystem().getPathMatcher( "glob:" + glob ) );
     }
 
     @Override
@@ -364,29 +949,15 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
     @Override
     public InputStream newInputStream( Path path, OpenOption... openOptions ) throws IOException {
         UnixSshPath unixPath = checkPath( path ).toAbsolutePath();
-        try {
-            final ChannelExecWrapper channel = unixPath.getFileSystem()
-                    .getCommandRunner()
-                    .open( unixPath.getFileSystem().getCommand( "cat" )
-                            + " " + unixPath.toAbsolutePath().quotedString() );
-            return new InputStream() {
-                private InputStream inputStream = channel.getInputStream();
-
-                @Override
-                public void close() throws IOException {
-                    int exitCode = channel.close();
-                    logger.debug( "cat exited with {}", exitCode );
-                }
-
-                @Override
-                public int read() throws IOException {
-                    return inputStream.read();
-                }
-            };
-        }
-        catch ( JSchException e ) {
-            throw new IOException( e );
+        UnixSshDiskCache diskCache = unixPath.getFileSystem().getDiskCache();
+        if ( diskCache != null ) {
+            // a stream reads the whole file, so it fills the cache on a miss
+            FileChannel local = diskCache.open( unixPath, readAttributesRemote( unixPath ) );
+            if ( local != null ) {
+                return Channels.newInputStream( local );
+            }
         }
+        return new UnixSshInputStream( unixPath );
     }
 
     @Override
@@ -424,58 +995,157 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
         }
         catch ( NoSuchFileException e ) {
             if ( options.contains( StandardOpenOption.CREATE_NEW ) ) {
-                // this is as close to atomic create as i can get...
-                // TODO convert this to use `dd of=file conv=excl` and write 0
-                // bytes which will make the check for exists and create atomic
-                createFile( unixPath );
+                openFile( unixPath, EnumSet.of( StandardOpenOption.CREATE_NEW ) );
             }
             else if ( !options.contains( StandardOpenOption.CREATE ) ) {
                 throw e;
             }
         }
 
-        try {
+        StringBuilder commandBuilder = new StringBuilder( unixPath.getFileSystem().getCommand( "cat" ) )
+                .append( " " );
+        if ( options.contains( StandardOpenOption.APPEND )
+                && !options.contains( StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            commandBuilder.append( ">> " );
+        }
+        else {
+            commandBuilder.append( "> " );
+        }
+        commandBuilder.append( unixPath.toAbsolutePath().quotedString() );
+
+        return new UnixSshOutputStream( unixPath, commandBuilder.toString() );
+    }
+
+    /**
+     * Opens <code>path</code> the way <code>openOptions</code> ask for,
+     * creating it with <code>fileAttributes</code> if it is missing and may
+     * be created, truncating it if it is opened for writing with
+     * {@link StandardOpenOption#TRUNCATE_EXISTING}, and returns its
+     * attributes as they are afterwards, all from a single remote script.
+     * The script always runs, as attributes known from the cache or a
+     * listing may be stale, and an appending channel starts at the size
+     * returned; its result only goes into the cache.
+     */
+    @SuppressWarnings("unchecked")
+    PosixFileAttributes openFile( UnixSshPath path, Set<? extends OpenOption> openOptions, FileAttribute<?>... fileAttributes ) throws IOException {
+        boolean createNew = openOptions.contains( StandardOpenOption.CREATE_NEW );
+        boolean create = createNew || openOptions.contains( StandardOpenOption.CREATE );
+        boolean truncate = openOptions.contains( StandardOpenOption.WRITE )
+                && openOptions.contains( StandardOpenOption.TRUNCATE_EXISTING );
+
+        UnixSshPath absolutePath = path.toAbsolutePath();
+        UnixSshFileSystem fileSystem = path.getFileSystem();
+        UnixSshAttributeCache attributeCache = fileSystem.getAttributeCache();
+
+        Set<PosixFilePermission> permissions = null;
+        UserPrincipal owner = null;
+        GroupPrincipal group = null;
+        for ( FileAttribute<?> fileAttribute : fileAttributes ) {
+            String name = fileAttribute.name();
+            if ( name.equals( "posix:permissions" ) ) {
+                permissions = (Set<PosixFilePermission>)fileAttribute.value();
+            }
+            else if ( name.equals( "posix:owner" ) ) {
+                owner = (UserPrincipal)fileAttribute.value();
+            }
+            else if ( name.equals( "posix:group" ) ) {
+                group = (GroupPrincipal)fileAttribute.value();
+            }
+        }
 
-            StringBuilder commandBuilder = new StringBuilder( unixPath.getFileSystem().getCommand( "cat" ) )
-                    .append( " " );
-            if ( options.contains( StandardOpenOption.APPEND )
-                    && !options.contains( StandardOpenOption.TRUNCATE_EXISTING ) ) {
-                commandBuilder.append( ">> " );
+        String pathString = absolutePath.quotedString();
+        String testCommand = fileSystem.getCommand( "test" );
+        StringBuilder commandBuilder = new StringBuilder();
+        if ( createNew ) {
+            // noclobber opens with O_EXCL, so checking for an existing file
+            // and creating it is a single atomic step
+            commandBuilder.append( "( set -C; : > " ).append( pathString ).append( " ) 2> /dev/null || { " )
+                    .append( testCommand ).append( " -e " ).append( pathString )
+                    .append( " && exit " ).append( EXIT_FILE_EXISTS ).append( "; " );
+        }
+        else {
+            commandBuilder.append( "if " ).append( testCommand ).append( " -e " ).append( pathString )
+                    .append( "; then :; " );
+            if ( truncate ) {
+                commandBuilder.append( ": > " ).append( pathString ).append( " || exit 1; " );
+            }
+            if ( create ) {
+                commandBuilder.append( "else : >> " ).append( pathString ).append( " 2> /dev/null || { " );
             }
             else {
-                commandBuilder.append( "> " );
+                commandBuilder.append( "else exit " ).append( EXIT_NO_SUCH_FILE ).append( "; fi; " );
             }
-            commandBuilder.append( unixPath.toAbsolutePath().quotedString() );
-
-            final ChannelExecWrapper channel = unixPath.getFileSystem()
-                    .getCommandRunner().open( commandBuilder.toString() );
-            return new OutputStream() {
-                private OutputStream outputStream = channel.getOutputStream();
+        }
+        if ( create ) {
+            UnixSshPath parent = absolutePath.getParent();
+            if ( parent != null ) {
+                commandBuilder.append( testCommand ).append( " -d " ).append( parent.quotedString() )
+                        .append( " || exit " ).append( EXIT_NO_SUCH_FILE ).append( "; " );
+            }
+            commandBuilder.append( "exit 1; }; " );
+            // attributes only apply to what this script created
+            if ( permissions != null ) {
+                commandBuilder.append( fileSystem.getCommand( "chmod" ) ).append( " " ).append( toMode( permissions ) )
+                        .append( " " ).append( pathString ).append( " || exit 1; " );
+            }
+            if ( owner != null ) {
+                commandBuilder.append( fileSystem.getCommand( "chown" ) ).append( " " ).append( owner.getName() )
+                        .append( " " ).append( pathString ).append( " || exit 1; " );
+            }
+            if ( group != null ) {
+                commandBuilder.append( fileSystem.getCommand( "chgrp" ) ).append( " " ).append( group.getName() )
+                        .append( " " ).append( pathString ).append( " || exit 1; " );
+            }
+            if ( !createNew ) {
+                commandBuilder.append( "fi; " );
+            }
+        }
+        SupportedAttribute[] allAttributes = SupportedAttribute.values();
+        commandBuilder.append( statCommand( absolutePath, allAttributes ) ).append( " " ).append( pathString );
 
-                @Override
-                public void close() throws IOException {
-                    int exitCode = channel.close();
-                    logger.debug( "cat exited with {}", exitCode );
-                }
+        // with the access mask, the result is as good as a cache entry
+        boolean access = attributeCache != null && attributeCache.getTtl() > 0;
+        if ( access ) {
+            commandBuilder.append( " && { " ).append( accessCommand( absolutePath ) )
+                    .append( "printf \"" ).append( ASCII_UNIT_SEPARATOR ).append( "%d\" $m; }" );
+        }
 
-                @Override
-                public void write( int b ) throws IOException {
-                    outputStream.write( b );
-                }
-            };
+        String command = commandBuilder.toString();
+        ExecuteResult result;
+        try {
+            result = execute( absolutePath, command );
         }
-        catch ( JSchException e ) {
-            throw new IOException( e );
+        finally {
+            if ( create || truncate ) {
+                invalidateAttributes( path );
+            }
         }
+        if ( result.getExitCode() == EXIT_FILE_EXISTS ) {
+            throw new FileAlreadyExistsException( path.toString() );
+        }
+        if ( result.getExitCode() == EXIT_NO_SUCH_FILE ) {
+            // without its parent directory, the path is missing too
+            missing( absolutePath );
+        }
+        if ( result.getExitCode() != 0 ) {
+            throw new UnixSshCommandFailedException( command, result );
+        }
+
+        Map<String, Object> map = statParse( result.getStdout(), allAttributes, access );
+        if ( access ) {
+            attributeCache.put( absolutePath, map );
+        }
+        return new PosixFileAttributesImpl( map );
     }
 
     int read( UnixSshPath path, long startIndex, ByteBuffer bytes ) throws IOException {
+        if ( !bytes.hasRemaining() ) {
+            return 0;
+        }
         try {
             int read = 0;
             ChannelExecWrapper sshChannel = path.getFileSystem().getCommandRunner().open(
-                    path.getFileSystem().getCommand( "dd" )
-                            + " bs=1 skip=" + startIndex + " if=" 
-                            + path.toAbsolutePath().quotedString() + " 2> /dev/null");
+                    rangedReadCommand( path, startIndex, bytes.remaining() ) );
             try (InputStream in = sshChannel.getInputStream()) {
                 ReadableByteChannel inChannel = Channels.newChannel( in );
                 int localRead;
@@ -485,8 +1155,11 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
             }
             finally {
                 int exitCode = sshChannel.close();
+                if ( exitCode == EXIT_NO_SUCH_FILE ) {
+                    throw new NoSuchFileException( path.toString() );
+                }
                 if ( exitCode != 0 ) {
-                    throw new IOException( "dd failed " + exitCode );
+                    throw new IOException( "ranged read failed " + exitCode );
                 }
             }
             return read;
@@ -496,6 +1169,74 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
         }
     }
 
+    /**
+     * Returns a command that writes exactly the bytes in
+     * <code>[startIndex, startIndex + length)</code> of path to stdout (fewer
+     * if the file ends first), or everything from startIndex on if length is
+     * negative. Exits with {@link #EXIT_NO_SUCH_FILE} if path does not exist,
+     * or some other non-zero status if it cannot be read.
+     */
+    String rangedReadCommand( UnixSshPath path, long startIndex, long length ) {
+        String pathString = path.toAbsolutePath().quotedString();
+        switch ( path.getFileSystem().getVariant( "dd" ) ) {
+            case BSD:
+                // bsd dd cannot skip or count in bytes without falling back to
+                // bs=1, but tail and head can and they read in large blocks
+                StringBuilder commandBuilder = new StringBuilder();
+                if ( startIndex > 0 ) {
+                    if ( length >= 0 ) {
+                        // the pipeline exits with the status of head, which
+                        // reads an empty range when tail fails to open path
+                        String testCommand = path.getFileSystem().getCommand( "test" );
+                        commandBuilder.append( testCommand ).append( " -e " ).append( pathString )
+                                .append( " || exit " ).append( EXIT_NO_SUCH_FILE ).append( "; " )
+                                .append( testCommand ).append( " -r " ).append( pathString )
+                                .append( " || exit 1; " );
+                    }
+                    commandBuilder.append( path.getFileSystem().getCommand( "tail" ) )
+                            .append( " -c +" ).append( startIndex + 1 )
+                            .append( " " ).append( pathString );
+                    if ( length >= 0 ) {
+                        commandBuilder.append( " | " )
+                                .append( path.getFileSystem().getCommand( "head" ) )
+                                .append( " -c " ).append( length );
+                    }
+                }
+                else if ( length >= 0 ) {
+                    commandBuilder.append( path.getFileSystem().getCommand( "head" ) )
+                            .append( " -c " ).append( length )
+                            .append( " " ).append( pathString );
+                }
+                else {
+                    commandBuilder.append( path.getFileSystem().getCommand( "cat" ) )
+                            .append( " " ).append( pathString );
+                }
+                return commandBuilder.toString();
+
+            case GNU:
+            default:
+                long blockSize = length < 0 ? MAX_BLOCK_SIZE : Math.max( 1, Math.min( length, MAX_BLOCK_SIZE ) );
+                return path.getFileSystem().getCommand( "dd" )
+                        + " bs=" + blockSize
+                        + (length < 0
+                                ? " iflag=skip_bytes skip=" + startIndex
+                                : " iflag=skip_bytes,count_bytes skip=" + startIndex + " count=" + length)
+                        + " if=" + pathString + " 2> /dev/null";
+        }
+    }
+
+    private int readAccess( UnixSshPath path ) throws IOException {
+        String command = accessCommand( path ) + "echo $m";
+        ExecuteResult result = execute( path, command );
+        if ( result.getExitCode() == EXIT_NO_SUCH_FILE ) {
+            missing( path );
+        }
+        if ( result.getExitCode() != 0 ) {
+            throw new UnixSshCommandFailedException( command, result );
+        }
+        return Integer.parseInt( result.getStdout().trim() );
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <A extends BasicFileAttributes> A readAttributes( Path path, Class<A> type, LinkOption... linkOptions ) throws IOException {
@@ -511,6 +1252,94 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
         return (A)null;
     }
 
+    /**
+     * Reads the attributes of every path in <code>paths</code> with as few
+     * remote stats as the length of their arguments allows, rather than one
+     * stat each.
+     * 
+     * @param paths
+     *            The paths to read
+     * @param type
+     *            {@link BasicFileAttributes} or {@link PosixFileAttributes}
+     * @return The attributes of each path, in the order of
+     *         <code>paths</code>, null for a path that does not exist, and
+     *         leaving out any that could not be stat'ed
+     * @throws IOException
+     *             If a stat could not be run
+     * @see #readAttributes(Collection, Class, Map)
+     */
+    public <A extends BasicFileAttributes> Map<UnixSshPath, A> readAttributes( Collection<UnixSshPath> paths, Class<A> type ) throws IOException {
+        return readAttributes( paths, type, null );
+    }
+
+    /**
+     * Reads the attributes of every path in <code>paths</code> with as few
+     * remote stats as the length of their arguments allows, rather than one
+     * stat each. Attributes already in the file system's attribute cache are
+     * used as is, attributes read are cached, and paths found missing are
+     * remembered as such, just as they would be by
+     * {@link #readAttributes(Path, Class, LinkOption...)}. A path that exists
+     * but could not be stat'ed does not fail the others.
+     * 
+     * @param paths
+     *            The paths to read
+     * @param type
+     *            {@link BasicFileAttributes} or {@link PosixFileAttributes}
+     * @param failures
+     *            If not null, gets why each path left out of the result
+     *            could not be stat'ed
+     * @return The attributes of each path, in the order of
+     *         <code>paths</code>, null for a path that does not exist, and
+     *         leaving out any that could not be stat'ed
+     * @throws IOException
+     *             If a stat could not be run
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> Map<UnixSshPath, A> readAttributes( Collection<UnixSshPath> paths, Class<A> type, Map<UnixSshPath, IOException> failures ) throws IOException {
+        if ( type == null ) {
+            throw new NullPointerException();
+        }
+        if ( type != BasicFileAttributes.class && type != PosixFileAttributes.class ) {
+            throw new UnsupportedOperationException( "cannot read " + type.getName() + " in bulk" );
+        }
+
+        Map<UnixSshPath, A> map = new LinkedHashMap<UnixSshPath, A>();
+        List<UnixSshPath> batch = new ArrayList<UnixSshPath>();
+        int batchLength = 0;
+        for ( UnixSshPath path : paths ) {
+            UnixSshPath absolutePath = checkPath( path ).toAbsolutePath();
+            UnixSshAttributeCache attributeCache = absolutePath.getFileSystem().getAttributeCache();
+            Map<String, Object> attributes = null;
+            if ( attributeCache != null ) {
+                if ( attributeCache.isMissing( absolutePath ) ) {
+                    map.put( path, null );
+                    continue;
+                }
+                attributes = attributeCache.get( absolutePath );
+            }
+            if ( attributes != null ) {
+                map.put( path, (A)new PosixFileAttributesImpl( attributes ) );
+                continue;
+            }
+
+            // filled in once its batch has been stat'ed
+            map.put( path, null );
+            int length = absolutePath.quotedString().length() + 1;
+            if ( !batch.isEmpty() && (batchLength + length > MAX_ARGUMENTS_LENGTH
+                    || batch.get( 0 ).getFileSystem() != absolutePath.getFileSystem()) ) {
+                readAttributesBatch( batch, map, failures );
+                batch.clear();
+                batchLength = 0;
+            }
+            batch.add( path );
+            batchLength += length;
+        }
+        if ( !batch.isEmpty() ) {
+            readAttributesBatch( batch, map, failures );
+        }
+        return map;
+    }
+
     @Override
     public Map<String, Object> readAttributes( Path path, String attributes, LinkOption... linkOptions ) throws IOException {
         List<SupportedAttribute> attributeList = new ArrayList<SupportedAttribute>();
@@ -528,28 +1357,164 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
     }
 
     private Map<String, Object> readAttributes( Path path, SupportedAttribute[] attributes, LinkOption... linkOptions ) throws IOException {
-        UnixSshPath unixPath = checkPath( path ).toAbsolutePath();
-        String command = statCommand( unixPath, attributes ) 
-                + " " + unixPath.toAbsolutePath().quotedString();
-        String result = null;
-        try {
-            result = executeForStdout( unixPath, command );
+        UnixSshPath unixPath = checkPath( path );
+        Map<String, Object> listed = unixPath.getAttributes();
+        if ( listed != null ) {
+            return selectAttributes( listed, attributes );
         }
-        catch ( UnixSshCommandFailedException e ) {
-            if ( exists( unixPath ) ) {
-                throw e;
+        unixPath = unixPath.toAbsolutePath();
+        Map<String, Object> cached = cachedAttributes( unixPath );
+        if ( cached == null ) {
+            return readAttributesUncached( unixPath, attributes, false );
+        }
+        return selectAttributes( cached, attributes );
+    }
+
+    /**
+     * Stats every path in <code>batch</code>, which must share a file
+     * system, in a single round trip and puts their attributes in
+     * <code>map</code>. The stat is followed by a loop of shell builtins
+     * that names the paths that do not exist, so a missing path can be told
+     * from one that failed to stat, and, if the attributes are to be cached,
+     * prints the access mask of the others. A path that failed to stat is
+     * taken out of <code>map</code> and put in <code>failures</code>.
+     */
+    @SuppressWarnings("unchecked")
+    private <A extends BasicFileAttributes> void readAttributesBatch( List<UnixSshPath> batch, Map<UnixSshPath, A> map, Map<UnixSshPath, IOException> failures ) throws IOException {
+        UnixSshPath first = batch.get( 0 );
+        UnixSshFileSystem fileSystem = first.getFileSystem();
+        UnixSshAttributeCache attributeCache = fileSystem.getAttributeCache();
+        // with the access mask, the result is as good as a cache entry
+        boolean access = attributeCache != null && attributeCache.getTtl() > 0;
+        SupportedAttribute[] allAttributes = SupportedAttribute.values();
+        StringBuilder commandBuilder = new StringBuilder( "set --" );
+        for ( UnixSshPath path : batch ) {
+            commandBuilder.append( " " ).append( path.toAbsolutePath().quotedString() );
+        }
+        String testCommand = fileSystem.getCommand( "test" );
+        commandBuilder.append( "; " )
+                .append( statCommand( first, allAttributes, true ) ).append( " \"$@\" 2> /dev/null; " )
+                .append( "for f in \"$@\"; do if " )
+                .append( testCommand ).append( " -e \"$f\" || " )
+                .append( testCommand ).append( " -L \"$f\"; then " );
+        if ( access ) {
+            commandBuilder.append( "m=0; " )
+                    .append( testCommand ).append( " -r \"$f\" && m=$((m+" ).append( ACCESS_READ ).append( ")); " )
+                    .append( testCommand ).append( " -w \"$f\" && m=$((m+" ).append( ACCESS_WRITE ).append( ")); " )
+                    .append( testCommand ).append( " -x \"$f\" && m=$((m+" ).append( ACCESS_EXECUTE ).append( ")); " )
+                    .append( "printf \"" ).append( ASCII_RECORD_SEPARATOR ).append( "%d" )
+                    .append( ASCII_UNIT_SEPARATOR ).append( "%s\\n\" $m \"$f\"; " );
+        }
+        else {
+            commandBuilder.append( ":; " );
+        }
+        String command = commandBuilder.append( "else printf \"" ).append( ASCII_UNIT_SEPARATOR )
+                .append( "%s\\n\" \"$f\"; fi; done" )
+                .toString();
+        String stdout = executeForStdout( first, command );
+
+        Map<String, Map<String, Object>> found = new HashMap<String, Map<String, Object>>();
+        Map<String, Integer> accessMasks = new HashMap<String, Integer>();
+        Set<String> missing = new HashSet<String>();
+        for ( String line : stdout.split( "\n" ) ) {
+            if ( line.isEmpty() ) {
+                continue;
+            }
+            if ( line.startsWith( ASCII_UNIT_SEPARATOR ) ) {
+                missing.add( line.substring( 1 ) );
+            }
+            else if ( line.startsWith( ASCII_RECORD_SEPARATOR ) ) {
+                int separator = line.indexOf( ASCII_UNIT_SEPARATOR );
+                if ( separator > 0 ) {
+                    accessMasks.put( line.substring( separator + 1 ),
+                            Integer.parseInt( line.substring( 1, separator ) ) );
+                }
+            }
+            // a name with a newline in it spreads its stat over more lines
+            else if ( line.split( ASCII_UNIT_SEPARATOR, -1 ).length == allAttributes.length ) {
+                Map<String, Object> attributes = statParse( line, allAttributes );
+                found.put( (String)attributes.get( SupportedAttribute.name.toString() ), attributes );
+            }
+        }
+
+        for ( UnixSshPath path : batch ) {
+            UnixSshPath absolutePath = path.toAbsolutePath();
+            String pathString = absolutePath.toString();
+            Map<String, Object> attributes = found.get( pathString );
+            if ( attributes != null ) {
+                map.put( path, (A)new PosixFileAttributesImpl( attributes ) );
+                Integer accessMask = accessMasks.get( pathString );
+                if ( accessMask != null ) {
+                    attributes.put( ACCESS_ATTRIBUTE, accessMask );
+                    attributeCache.put( absolutePath, attributes );
+                }
+            }
+            else if ( missing.contains( pathString ) ) {
+                if ( attributeCache != null ) {
+                    attributeCache.putMissing( absolutePath );
+                }
             }
             else {
-                throw new NoSuchFileException( path.toString() );
+                map.remove( path );
+                if ( failures != null ) {
+                    failures.put( path, new IOException( "could not stat " + pathString ) );
+                }
             }
         }
-        return statParse( result, attributes );
+    }
+
+    /**
+     * Returns the attributes <code>entry</code> was listed with, however old,
+     * for whoever is reading the walk or listing that produced it, or stats
+     * it if it carries none.
+     */
+    PosixFileAttributes readListedAttributes( UnixSshPath entry ) throws IOException {
+        Map<String, Object> listed = entry.getListedAttributes();
+        return listed == null
+                ? readAttributes( entry, PosixFileAttributes.class )
+                : new PosixFileAttributesImpl( listed );
+    }
+
+    /**
+     * Returns the attributes of <code>path</code> as a remote stat finds them
+     * right now, never from the attribute cache or a listing.
+     */
+    PosixFileAttributes readAttributesRemote( UnixSshPath path ) throws IOException {
+        return new PosixFileAttributesImpl( readAttributesUncached( path.toAbsolutePath(), SupportedAttribute.values(), false ) );
+    }
+
+    private Map<String, Object> readAttributesUncached( UnixSshPath unixPath, SupportedAttribute[] attributes, boolean access ) throws IOException {
+        // tell a missing file from a failed stat in the same round trip
+        String pathString = unixPath.quotedString();
+        String command = statCommand( unixPath, attributes ) + " " + pathString
+                + " || { " + unixPath.getFileSystem().getCommand( "test" ) + " -e " + pathString
+                + " || exit " + EXIT_NO_SUCH_FILE + "; exit 1; }";
+        if ( access ) {
+            command += "; " + accessCommand( unixPath ) + "printf \"" + ASCII_UNIT_SEPARATOR + "%d\" $m";
+        }
+        ExecuteResult result = execute( unixPath, command );
+        if ( result.getExitCode() == EXIT_NO_SUCH_FILE ) {
+            missing( unixPath );
+        }
+        if ( result.getExitCode() != 0 ) {
+            throw new UnixSshCommandFailedException( command, result );
+        }
+
+        return statParse( result.getStdout(), attributes, access );
     }
 
     void removeFileSystem( UnixSshFileSystem fileSystem ) {
         fileSystemMap.remove( fileSystem.getUri().resolve( PATH_SEPARATOR_STRING ) );
     }
 
+    private static Map<String, Object> selectAttributes( Map<String, Object> all, SupportedAttribute[] attributes ) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for ( SupportedAttribute attribute : attributes ) {
+            map.put( attribute.name(), all.get( attribute.name() ) );
+        }
+        return map;
+    }
+
     @Override
     public void setAttribute( Path path, String attribute, Object value, LinkOption... linkOptions ) throws IOException {
         String viewName = null;
@@ -574,61 +1539,98 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
     void setGroup( UnixSshPath path, GroupPrincipal group ) throws IOException {
         String command = path.getFileSystem().getCommand( "chgrp" )
                 + " " + group.getName() + " " + path.toAbsolutePath().quotedString();
-        executeForStdout( path, command );
+        try {
+            executeForStdout( path, command );
+        }
+        finally {
+            invalidateAttributes( path );
+        }
     }
 
     void setOwner( UnixSshPath path, UserPrincipal owner ) throws IOException {
         String command = path.getFileSystem().getCommand( "chown" )
                 + " " + owner.getName() + " " + path.toAbsolutePath().quotedString();
-        executeForStdout( path, command );
+        try {
+            executeForStdout( path, command );
+        }
+        finally {
+            invalidateAttributes( path );
+        }
     }
 
     void setPermissions( UnixSshPath path, Set<PosixFilePermission> permissions ) throws IOException {
         String command = path.getFileSystem().getCommand( "chmod" )
                 + " " + toMode( permissions ) + " " + path.toAbsolutePath().quotedString();
-        executeForStdout( path, command );
+        try {
+            executeForStdout( path, command );
+        }
+        finally {
+            invalidateAttributes( path );
+        }
     }
 
     void setTimes( UnixSshPath path, FileTime lastModifiedTime, FileTime lastAccessTime ) throws IOException {
-        if ( lastModifiedTime != null && lastModifiedTime.equals( lastAccessTime ) ) {
-            String command = path.getFileSystem().getCommand( "touch" )
-                    + " -t " + toTouchTime( lastModifiedTime )
-                    + " " + path.toAbsolutePath().quotedString();
-            executeForStdout( path, command );
-            return;
-        }
+        try {
+            if ( lastModifiedTime != null && lastModifiedTime.equals( lastAccessTime ) ) {
+                String command = path.getFileSystem().getCommand( "touch" )
+                        + " -t " + toTouchTime( lastModifiedTime )
+                        + " " + path.toAbsolutePath().quotedString();
+                executeForStdout( path, command );
+                return;
+            }
 
-        if ( lastModifiedTime != null ) {
-            String command = path.getFileSystem().getCommand( "touch" )
-                    + " -m -t " + toTouchTime( lastModifiedTime )
-                    + " " + path.toAbsolutePath().quotedString();
-            executeForStdout( path, command );
+            if ( lastModifiedTime != null ) {
+                String command = path.getFileSystem().getCommand( "touch" )
+                        + " -m -t " + toTouchTime( lastModifiedTime )
+                        + " " + path.toAbsolutePath().quotedString();
+                executeForStdout( path, command );
+            }
+            if ( lastAccessTime != null ) {
+                String command = path.getFileSystem().getCommand( "touch" )
+                        + " -a -t " + toTouchTime( lastModifiedTime )
+                        + " " + path.toAbsolutePath().quotedString();
+                executeForStdout( path, command );
+            }
         }
-        if ( lastAccessTime != null ) {
-            String command = path.getFileSystem().getCommand( "touch" )
-                    + " -a -t " + toTouchTime( lastModifiedTime )
-                    + " " + path.toAbsolutePath().quotedString();
-            executeForStdout( path, command );
+        finally {
+            invalidateAttributes( path );
         }
     }
 
+    /**
+     * Returns the hex encoded sha-256 of the remote file.
+     */
+    String sha256( UnixSshPath path ) throws IOException {
+        UnixSshFileSystem fileSystem = path.getFileSystem();
+        String command = fileSystem.getVariant( "sha256sum" ) == Variant.BSD
+                ? fileSystem.getCommand( "shasum" ) + " -a 256 "
+                : fileSystem.getCommand( "sha256sum" ) + " ";
+        String stdout = executeForStdout( path, command + path.toAbsolutePath().quotedString() );
+        return stdout.trim().split( "\\s+", 2 )[0];
+    }
+
     private String statCommand( UnixSshPath path, SupportedAttribute[] attributes ) {
         return statCommand( path, attributes, false );
     }
 
     private String statCommand( UnixSshPath path, SupportedAttribute[] attributes, boolean newline ) {
-        final StringBuilder commandBuilder;
+        return statCommand( path, attributes, newline, false );
+    }
+
+    private String statCommand( UnixSshPath path, SupportedAttribute[] attributes, boolean newline, boolean followLinks ) {
+        final StringBuilder commandBuilder = new StringBuilder( path.getFileSystem().getCommand( "stat" ) );
+        if ( followLinks ) {
+            commandBuilder.append( " -L" );
+        }
         final Variant variant = path.getFileSystem().getVariant("stat");
         switch(variant) {
             case BSD:
-                commandBuilder = new StringBuilder(path.getFileSystem().getCommand("stat"))
-                        .append(" -f \"");
+                commandBuilder.append(" -f \"");
                 break;
 
             case GNU:
             default:
-                commandBuilder = new StringBuilder( path.getFileSystem().getCommand( "stat" ) )
-                        .append( " --printf \"" );
+                commandBuilder.append( " --printf \"" );
                 break;
         }
 
@@ -655,6 +1657,21 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
         return map;
     }
 
+    /**
+     * Parses the output of a stat of <code>attributes</code> that, if
+     * <code>access</code>, was followed by the access mask printed after a
+     * unit separator.
+     */
+    private Map<String, Object> statParse( String result, SupportedAttribute[] attributes, boolean access ) {
+        if ( !access ) {
+            return statParse( result, attributes );
+        }
+        int accessIndex = result.lastIndexOf( ASCII_UNIT_SEPARATOR );
+        Map<String, Object> map = statParse( result.substring( 0, accessIndex ), attributes );
+        map.put( ACCESS_ATTRIBUTE, Integer.parseInt( result.substring( accessIndex + 1 ).trim() ) );
+        return map;
+    }
+
     Map<UnixSshPath, PosixFileAttributes> statDirectory( UnixSshPath directoryPath ) throws IOException {
         Map<UnixSshPath, PosixFileAttributes> map = new HashMap<>();
         SupportedAttribute[] allAttributes = SupportedAttribute.values();
@@ -703,31 +1720,191 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
     void truncateFile( UnixSshPath path, long size ) throws IOException {
         String command = path.getFileSystem().getCommand( "truncate" )
                 + " -s " + size + " " + path.toAbsolutePath().quotedString();
-        executeForStdout( path, command );
+        try {
+            executeForStdout( path, command );
+        }
+        finally {
+            invalidateFileAttributes( path );
+        }
+    }
+
+    /**
+     * Uploads <code>localSource</code> to <code>path</code> over
+     * <code>parallelism</code> concurrent exec channels.
+     * 
+     * @see #upload(Path, UnixSshPath, int, boolean, UnixSshTransferListener)
+     */
+    public void upload( Path localSource, UnixSshPath path, int parallelism ) throws IOException {
+        upload( localSource, path, parallelism, false, null );
+    }
+
+    /**
+     * Uploads <code>localSource</code> to <code>path</code> over
+     * <code>parallelism</code> concurrent exec channels on the file system's
+     * session. The remote file is sized with <code>truncate</code> first and
+     * each range is written into place with <code>dd conv=notrunc</code>. A
+     * range that fails is retried without affecting the others.
+     * 
+     * @param localSource
+     *            The local file
+     * @param path
+     *            The remote file, replaced if it exists
+     * @param parallelism
+     *            The number of concurrent channels
+     * @param verify
+     *            If true, compare the sha-256 of the remote file with that of
+     *            the local file once the upload is done
+     * @param listener
+     *            Notified of progress and retries, may be null
+     * @throws IOException
+     *             If a range could not be transferred or verification failed
+     */
+    public void upload( Path localSource, UnixSshPath path, int parallelism, boolean verify, UnixSshTransferListener listener ) throws IOException {
+        UnixSshPath unixPath = checkPath( path );
+        try {
+            new UnixSshParallelTransfer( unixPath, parallelism, listener ).upload( localSource, verify );
+        }
+        finally {
+            invalidateAttributes( unixPath );
+        }
+    }
+
+    /**
+     * Returns <code>start</code> and everything under it, down to
+     * <code>maxDepth</code> levels below it, with every directory ahead of
+     * its contents, from a single remote find. As with
+     * {@link #newDirectoryStream(Path, Filter)}, entries are streamed as the
+     * find prints them and carry their attributes, so a walk of any size
+     * costs one round trip, and closing the stream abandons the find.
+     * 
+     * @param start
+     *            The path to start from, returned first
+     * @param maxDepth
+     *            The maximum number of levels to descend
+     * @param fileVisitOptions
+     *            {@link FileVisitOption#FOLLOW_LINKS} to descend into linked
+     *            directories and report what links point to
+     * @return The entries, resolved against <code>start</code>
+     * @throws IOException
+     *             If <code>start</code> does not exist or the find could not
+     *             be started, problems found later (such as an unreadable
+     *             directory, which is listed but not descended into, or a
+     *             link loop) surface as a
+     *             {@link java.nio.file.DirectoryIteratorException} once the
+     *             walk is otherwise complete
+     */
+    public DirectoryStream<Path> walk( UnixSshPath start, int maxDepth, FileVisitOption... fileVisitOptions ) throws IOException {
+        if ( maxDepth < 0 ) {
+            throw new IllegalArgumentException( "'maxDepth' is negative" );
+        }
+        boolean followLinks = Arrays.asList( fileVisitOptions ).contains( FileVisitOption.FOLLOW_LINKS );
+        UnixSshPath unixPath = checkPath( start );
+        return new UnixSshDirectoryStream( unixPath, walkCommand( unixPath, maxDepth, followLinks ), null );
+    }
+
+    /**
+     * Returns the command that prints <code>start</code> and everything
+     * under it down to <code>maxDepth</code> levels, one per line as stat'ed
+     * by a single find, or exits with {@link #EXIT_NO_SUCH_FILE}. Directories
+     * that cannot be read are pruned, so the find does not fail on them, and
+     * their lines are prefixed with {@link #ASCII_RECORD_SEPARATOR}. They go
+     * through the same batches as everything else so that they stay in order.
+     * Entries that are gone by the time they are stat'ed are left out.
+     */
+    private String walkCommand( UnixSshPath start, int maxDepth, boolean followLinks ) {
+        UnixSshFileSystem fileSystem = start.getFileSystem();
+        String pathString = start.toAbsolutePath().quotedString();
+        String testCommand = fileSystem.getCommand( "test" );
+        String statCommand = statCommand( start, SupportedAttribute.values(), true, followLinks );
+        String unreadable = testCommand + " -d \"$e\""
+                + (followLinks ? "" : " && ! " + testCommand + " -L \"$e\"")
+                + " && ! { " + testCommand + " -r \"$e\" && " + testCommand + " -x \"$e\"; }";
+
+        StringBuilder commandBuilder = new StringBuilder( testCommand )
+                .append( " -e " ).append( pathString )
+                .append( " || exit " ).append( EXIT_NO_SUCH_FILE ).append( "; " )
+                .append( fileSystem.getCommand( "find" ) );
+        if ( followLinks ) {
+            commandBuilder.append( " -L" );
+        }
+        commandBuilder.append( " " ).append( pathString );
+        if ( maxDepth < Integer.MAX_VALUE ) {
+            commandBuilder.append( " -maxdepth " ).append( maxDepth );
+        }
+        commandBuilder.append( " \\( -type d ! " );
+        switch ( fileSystem.getVariant( "find" ) ) {
+            case BSD:
+                commandBuilder.append( "-exec " ).append( testCommand ).append( " -r {} -a -x {} \\;" );
+                break;
+
+            case GNU:
+            default:
+                commandBuilder.append( "\\( -readable -executable \\)" );
+        }
+        // a batch without unreadable directories, almost all of them, is
+        // stat'ed in one go
+        return commandBuilder.append( " -prune -o -true \\) -exec sh -c '" )
+                .append( "u=; for e; do if " ).append( unreadable ).append( "; then u=1; break; fi; done; " )
+                .append( "if " ).append( testCommand ).append( " -z \"$u\"; then " ).append( statCommand )
+                .append( " \"$@\" 2> /dev/null; exit 0; fi; for e; do if " ).append( unreadable )
+                .append( "; then s=$(" ).append( statCommand ).append( " \"$e\" 2> /dev/null) && printf \"" )
+                .append( ASCII_RECORD_SEPARATOR ).append( "%s\\n\" \"$s\"; else " ).append( statCommand )
+                .append( " \"$e\" 2> /dev/null; fi; done; exit 0' sh {} +" ).toString();
+    }
+
+    /**
+     * Walks the tree under <code>start</code> from a single
+     * {@link #walk(UnixSshPath, int, FileVisitOption...) walk}, as
+     * {@link java.nio.file.Files#walkFileTree(Path, FileVisitor)} would.
+     * 
+     * @see #walkFileTree(Path, Set, int, FileVisitor)
+     */
+    public Path walkFileTree( Path start, FileVisitor<? super Path> visitor ) throws IOException {
+        return walkFileTree( start, EnumSet.noneOf( FileVisitOption.class ), Integer.MAX_VALUE, visitor );
+    }
+
+    /**
+     * Walks the tree under <code>start</code> from a single
+     * {@link #walk(UnixSshPath, int, FileVisitOption...) walk}, as
+     * {@link java.nio.file.Files#walkFileTree(Path, Set, int, FileVisitor)}
+     * would, so existing visitors can use it as is. The visitor is handed
+     * the attributes read by the walk, which are
+     * {@link PosixFileAttributes}. A directory that cannot be read is
+     * handed to {@link FileVisitor#visitFileFailed(Object, IOException)}
+     * with an {@link java.nio.file.AccessDeniedException} and the walk goes
+     * on without it.
+     */
+    public Path walkFileTree( Path start, Set<FileVisitOption> fileVisitOptions, int maxDepth, FileVisitor<? super Path> visitor ) throws IOException {
+        return new UnixSshFileTreeWalker( fileVisitOptions, maxDepth, visitor ).walk( checkPath( start ) );
     }
 
     int write( UnixSshPath path, long startIndex, ByteBuffer bytes ) throws IOException {
+        int count = bytes.remaining();
+        if ( count == 0 ) {
+            return 0;
+        }
         try {
-            int bytesPosition = bytes.position();
-            // TODO cache this buffer for reuse
-            ByteBuffer temp = ByteBuffer.allocateDirect( bytes.limit() - bytesPosition );
-            temp.put( bytes );
-            bytes.position( bytesPosition );
-
-            String command = path.getFileSystem().getCommand( "dd" )
-                    + " conv=notrunc bs=1 seek=" + startIndex 
-                    + " of=" + path.toAbsolutePath().quotedString();
-            ChannelExecWrapper sshChannel = null;
-            int written = 0;
-            try {
-                sshChannel = path.getFileSystem().getCommandRunner().open( command );
-                try (OutputStream out = sshChannel.getOutputStream()) {
-                    WritableByteChannel outChannel = Channels.newChannel( out );
-                    temp.flip();
-                    written = outChannel.write( temp );
+            ChannelExecWrapper sshChannel = path.getFileSystem().getCommandRunner().open(
+                    writeCommand( path, startIndex ) );
+            try (OutputStream out = sshChannel.getOutputStream()) {
+                if ( bytes.hasArray() ) {
+                    out.write( bytes.array(), bytes.arrayOffset() + bytes.position(), count );
                 }
-                if ( written > 0 ) {
-                    bytes.position( bytesPosition + written );
+                else {
+                    UnixSshBufferPool bufferPool = path.getFileSystem().getBufferPool();
+                    ByteBuffer temp = bufferPool.acquire( WRITE_BLOCK_SIZE );
+                    try {
+                        ByteBuffer source = bytes.duplicate();
+                        while ( source.hasRemaining() ) {
+                            temp.clear();
+                            int length = Math.min( temp.remaining(), source.remaining() );
+                            source.get( temp.array(), 0, length );
+                            out.write( temp.array(), 0, length );
+                        }
+                    }
+                    finally {
+                        bufferPool.release( temp );
+                    }
                 }
             }
             finally {
@@ -736,13 +1913,42 @@ public class UnixSshFileSystemProvider extends AbstractSshFileSystemProvider {
                     throw new IOException( "dd failed " + exitCode );
                 }
             }
-            return written;
+            bytes.position( bytes.position() + count );
+            return count;
         }
         catch ( JSchException e ) {
             throw new IOException( e );
         }
     }
 
+    /**
+     * Returns a command that writes stdin into path starting at startIndex
+     * without truncating it, in blocks of {@link #WRITE_BLOCK_SIZE}. GNU dd
+     * seeks in bytes with <code>oflag=seek_bytes</code>. BSD dd can only
+     * seek in blocks, so the block size there is the largest power of
+     * two (up to {@link #WRITE_BLOCK_SIZE}) that divides startIndex, which
+     * is small for unaligned offsets but never needs <code>bs=1</code> for
+     * every write. Short reads from the pipe are written as is, so the block
+     * size does not need to divide the length.
+     */
+    String writeCommand( UnixSshPath path, long startIndex ) {
+        String command = path.getFileSystem().getCommand( "dd" ) + " conv=notrunc";
+        switch ( path.getFileSystem().getVariant( "dd" ) ) {
+            case BSD:
+                int blockSize = WRITE_BLOCK_SIZE;
+                if ( startIndex > 0 ) {
+                    blockSize = (int)Math.min( WRITE_BLOCK_SIZE, Long.lowestOneBit( startIndex ) );
+                }
+                command += " bs=" + blockSize + " seek=" + (startIndex / blockSize);
+                break;
+
+            case GNU:
+            default:
+                command += " bs=" + WRITE_BLOCK_SIZE + " oflag=seek_bytes seek=" + startIndex;
+        }
+        return command + " of=" + path.toAbsolutePath().quotedString() + " 2> /dev/null";
+    }
+
     private class BasicFileAttributesImpl implements BasicFileAttributes {
         protected Map<String, Object> map;
 
@@ -0,0 +1,117 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+
+
+/**
+ * Drives a {@link FileVisitor} from a single
+ * {@link UnixSshFileSystemProvider#walk(UnixSshPath, int, FileVisitOption...)
+ * walk}. The walk lists every directory ahead of its contents, so a
+ * directory is done, and gets its
+ * {@link FileVisitor#postVisitDirectory(Object, IOException)}, as soon as an
+ * entry shows up that is not under it. Skipped subtrees and siblings are
+ * read from the walk and dropped, while terminating closes the walk, which
+ * abandons the remote find. A directory the walk could not read gets
+ * {@link FileVisitor#visitFileFailed(Object, IOException)} in place of
+ * being visited, and the walk carries on, as it would locally.
+ */
+class UnixSshFileTreeWalker {
+    private Set<FileVisitOption> fileVisitOptions;
+    private int maxDepth;
+    private FileVisitor<? super Path> visitor;
+
+    UnixSshFileTreeWalker( Set<FileVisitOption> fileVisitOptions, int maxDepth, FileVisitor<? super Path> visitor ) {
+        this.fileVisitOptions = fileVisitOptions;
+        this.maxDepth = maxDepth;
+        this.visitor = visitor;
+    }
+
+    Path walk( UnixSshPath start ) throws IOException {
+        UnixSshFileSystemProvider provider = start.getFileSystem().provider();
+        UnixSshDirectoryStream entries;
+        try {
+            entries = (UnixSshDirectoryStream)provider.walk( start, maxDepth,
+                    fileVisitOptions.toArray( new FileVisitOption[fileVisitOptions.size()] ) );
+        }
+        catch ( IOException e ) {
+            visitor.visitFileFailed( start, e );
+            return start;
+        }
+
+        try {
+            Deque<Path> directories = new ArrayDeque<Path>();
+            // everything under this is to be left unvisited
+            Path skipped = null;
+            for ( Path entry : entries ) {
+                // claimed even if skipped, so that it does not fail the walk
+                IOException failure = entries.takeFailure( entry );
+                while ( !directories.isEmpty() && !entry.startsWith( directories.peek() ) ) {
+                    Path directory = directories.pop();
+                    FileVisitResult result = visitor.postVisitDirectory( directory, null );
+                    if ( result == FileVisitResult.TERMINATE ) {
+                        return start;
+                    }
+                    if ( result == FileVisitResult.SKIP_SIBLINGS ) {
+                        skipped = directory.getParent();
+                    }
+                }
+                if ( skipped != null ) {
+                    if ( entry.startsWith( skipped ) && !entry.equals( skipped ) ) {
+                        continue;
+                    }
+                    skipped = null;
+                }
+
+                PosixFileAttributes attributes = provider.readListedAttributes( (UnixSshPath)entry );
+                FileVisitResult result;
+                if ( attributes.isDirectory() && entry.getNameCount() - start.getNameCount() < maxDepth ) {
+                    if ( failure != null ) {
+                        result = visitor.visitFileFailed( entry, failure );
+                    }
+                    else {
+                        result = visitor.preVisitDirectory( entry, attributes );
+                        if ( result == FileVisitResult.CONTINUE ) {
+                            directories.push( entry );
+                        }
+                        else if ( result == FileVisitResult.SKIP_SUBTREE ) {
+                            skipped = entry;
+                        }
+                    }
+                }
+                else {
+                    result = visitor.visitFile( entry, attributes );
+                }
+                if ( result == FileVisitResult.TERMINATE ) {
+                    return start;
+                }
+                if ( result == FileVisitResult.SKIP_SIBLINGS ) {
+                    // a relative start has no parent, but no siblings either
+                    Path parent = entry.getParent();
+                    skipped = parent == null ? entry : parent;
+                }
+            }
+            while ( !directories.isEmpty() ) {
+                if ( visitor.postVisitDirectory( directories.pop(), null ) == FileVisitResult.TERMINATE ) {
+                    return start;
+                }
+            }
+        }
+        catch ( DirectoryIteratorException e ) {
+            throw e.getCause();
+        }
+        finally {
+            entries.close();
+        }
+        return start;
+    }
+}
@@ -0,0 +1,288 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+
+
+/**
+ * Streams a remote file from a single remote command. Bulk reads go straight
+ * to the underlying channel stream rather than one byte at a time, and skips
+ * larger than {@link #REMOTE_SKIP_THRESHOLD} restart the remote command at
+ * the new offset rather than pulling the skipped bytes over the wire.
+ * <p>
+ * When the file system has a {@link UnixSshBlockCache}, the file is stat'ed
+ * when the stream is opened, cached blocks are served without touching the
+ * remote command (which is only started, or restarted at the right offset,
+ * on the first miss), and every whole block read from the remote command is
+ * added to the cache.
+ */
+public class UnixSshInputStream extends InputStream {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshInputStream.class );
+    static final int REMOTE_SKIP_THRESHOLD = 256 * 1024;
+    static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private UnixSshBlockCache blockCache;
+    private ChannelExecWrapper channel;
+    private boolean closed;
+    private InputStream inputStream;
+    private UnixSshPath path;
+    private long position;
+    private long remotePosition;
+    private ByteBuffer teeBuffer;
+    private long teeIndex = -1;
+    private UnixSshBlockCache.FileVersion version;
+
+    UnixSshInputStream( UnixSshPath path ) throws IOException {
+        this.path = path.toAbsolutePath();
+
+        blockCache = this.path.getFileSystem().getBlockCache();
+        if ( blockCache == null ) {
+            open( 0 );
+        }
+        else {
+            version = new UnixSshBlockCache.FileVersion( this.path.getFileSystem().provider()
+                    .readAttributes( this.path, BasicFileAttributes.class ) );
+            teeBuffer = ByteBuffer.allocate( blockCache.getBlockSize() );
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        if ( version != null ) {
+            ByteBuffer block = cachedBlock();
+            if ( block != null ) {
+                return block.remaining();
+            }
+            if ( channel == null || remotePosition != position ) {
+                return 0;
+            }
+        }
+        return inputStream.available();
+    }
+
+    /**
+     * Returns the cached block containing <code>position</code>, positioned
+     * at <code>position</code>, or null if it is not cached.
+     */
+    private ByteBuffer cachedBlock() {
+        long index = position / blockCache.getBlockSize();
+        ByteBuffer block = blockCache.get( version, index );
+        if ( block == null ) {
+            return null;
+        }
+        int blockOffset = (int)(position - index * blockCache.getBlockSize());
+        if ( blockOffset >= block.limit() ) {
+            return null;
+        }
+        block.position( blockOffset );
+        return block;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        if ( channel != null ) {
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        try {
+            int exitCode = channel.close();
+            logger.debug( "read of {} exited with {}", path, exitCode );
+        }
+        finally {
+            channel = null;
+            inputStream = null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if ( closed ) {
+            throw new IOException( "stream closed" );
+        }
+    }
+
+    private void open( long startIndex ) throws IOException {
+        UnixSshFileSystem fileSystem = path.getFileSystem();
+        String command = startIndex == 0
+                ? fileSystem.getCommand( "cat" ) + " " + path.quotedString()
+                : fileSystem.provider().rangedReadCommand( path, startIndex, -1 );
+        try {
+            channel = fileSystem.getCommandRunner().open( command );
+            inputStream = channel.getInputStream();
+            position = startIndex;
+            remotePosition = startIndex;
+        }
+        catch ( JSchException e ) {
+            throw new IOException( e );
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ( version != null ) {
+            byte[] bytes = new byte[1];
+            return read( bytes, 0, 1 ) < 0 ? -1 : bytes[0] & 0xff;
+        }
+
+        ensureOpen();
+        int read = inputStream.read();
+        if ( read >= 0 ) {
+            position++;
+            remotePosition++;
+        }
+        return read;
+    }
+
+    @Override
+    public int read( byte[] bytes, int offset, int length ) throws IOException {
+        ensureOpen();
+        if ( version != null ) {
+            if ( length == 0 ) {
+                return 0;
+            }
+            if ( position >= version.getSize() ) {
+                return -1;
+            }
+
+            ByteBuffer block = cachedBlock();
+            if ( block != null ) {
+                int count = Math.min( length, block.remaining() );
+                block.get( bytes, offset, count );
+                position += count;
+                return count;
+            }
+            if ( channel == null || remotePosition != position ) {
+                if ( channel != null ) {
+                    closeChannel();
+                }
+                open( position );
+            }
+        }
+
+        int read = inputStream.read( bytes, offset, length );
+        if ( read > 0 ) {
+            if ( version != null ) {
+                tee( bytes, offset, read );
+            }
+            position += read;
+            remotePosition += read;
+        }
+        return read;
+    }
+
+    /**
+     * Skips <code>count</code> bytes. Small skips read and discard, larger
+     * ones restart the remote command at the new offset in which case, like
+     * {@link java.io.FileInputStream#skip(long)}, skipping past the end of
+     * the file is allowed and the next read will return <code>-1</code>.
+     * With a block cache, skipping is free, the remote command is only moved
+     * if the next read misses.
+     */
+    @Override
+    public long skip( long count ) throws IOException {
+        ensureOpen();
+        if ( count <= 0 ) {
+            return 0;
+        }
+
+        if ( version != null ) {
+            long skipped = Math.max( 0, Math.min( count, version.getSize() - position ) );
+            position += skipped;
+            return skipped;
+        }
+
+        long buffered = inputStream.available();
+        if ( count - buffered < REMOTE_SKIP_THRESHOLD ) {
+            long skipped = inputStream.skip( count );
+            position += skipped;
+            remotePosition += skipped;
+            return skipped;
+        }
+
+        long target = position + count;
+        logger.trace( "restarting read of {} at {}", path, target );
+        closeChannel();
+        open( target );
+        return count;
+    }
+
+    /**
+     * Adds the bytes just read from the remote command, starting at
+     * <code>remotePosition</code>, to the block being collected for the
+     * cache, caching it once it is complete.
+     */
+    private void tee( byte[] bytes, int offset, int length ) {
+        int blockSize = blockCache.getBlockSize();
+        long start = remotePosition;
+        while ( length > 0 ) {
+            long index = start / blockSize;
+            int blockOffset = (int)(start - index * blockSize);
+            if ( teeIndex != index || teeBuffer.position() != blockOffset ) {
+                teeBuffer.clear();
+                if ( blockOffset != 0 ) {
+                    // started mid block, nothing to collect until the next one
+                    int count = Math.min( length, blockSize - blockOffset );
+                    start += count;
+                    offset += count;
+                    length -= count;
+                    teeIndex = -1;
+                    continue;
+                }
+                teeIndex = index;
+            }
+
+            int count = Math.min( length, teeBuffer.remaining() );
+            teeBuffer.put( bytes, offset, count );
+            start += count;
+            offset += count;
+            length -= count;
+            if ( !teeBuffer.hasRemaining() || index * blockSize + teeBuffer.position() >= version.getSize() ) {
+                teeBuffer.flip();
+                blockCache.put( version, index, teeBuffer );
+                teeBuffer.clear();
+                teeIndex = index + 1;
+            }
+        }
+    }
+
+    /**
+     * Reads all remaining bytes and writes them to <code>out</code>,
+     * returning the number of bytes transferred.
+     */
+    public long transferTo( OutputStream out ) throws IOException {
+        ensureOpen();
+        UnixSshBufferPool bufferPool = path.getFileSystem().getBufferPool();
+        ByteBuffer buffer = bufferPool.acquire( TRANSFER_BUFFER_SIZE );
+        try {
+            byte[] bytes = buffer.array();
+            long transferred = 0;
+            int read;
+            while ( (read = read( bytes, 0, bytes.length )) >= 0 ) {
+                out.write( bytes, 0, read );
+                transferred += read;
+            }
+            return transferred;
+        }
+        finally {
+            bufferPool.release( buffer );
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Decides whether the attributes a directory listing left on a path may
+ * still be served without asking the remote system again. They are trusted
+ * for <code>maxAge</code> milliseconds after being read, and only as long
+ * as nothing has been changed through the provider at that path, under it,
+ * or, for a directory, in it since the listing started. Changes are
+ * remembered by absolute path, so they apply to every path equal to the one
+ * changed, relative or not, until they are older than <code>maxAge</code>
+ * or more than {@link #MAXIMUM_CHANGES} newer ones push them out. Attributes
+ * from a listing that started before a change that has been forgotten are
+ * not trusted at all.
+ */
+class UnixSshListedAttributes {
+    static final int MAXIMUM_CHANGES = 10000;
+
+    // changes to a path alone, the directories whose entries changed
+    private Map<UnixSshPath, Long> entryChanges = new LinkedHashMap<UnixSshPath, Long>();
+    // the time of the newest change no longer remembered, if any
+    private Long forgotten;
+    private long maxAgeNanos;
+    // changes to a path and anything under it
+    private Map<UnixSshPath, Long> treeChanges = new LinkedHashMap<UnixSshPath, Long>();
+
+    UnixSshListedAttributes( long maxAgeMillis ) {
+        this.maxAgeNanos = maxAgeMillis * 1000000L;
+    }
+
+    /**
+     * Records that <code>path</code>, which must be absolute, and anything
+     * under it may have changed.
+     */
+    synchronized void changed( UnixSshPath path ) {
+        record( treeChanges, path );
+    }
+
+    /**
+     * Records that <code>path</code>, which must be absolute, may have
+     * changed, leaving anything under it alone.
+     */
+    synchronized void changedEntry( UnixSshPath path ) {
+        record( entryChanges, path );
+    }
+
+    /**
+     * Returns true if attributes of <code>path</code>, which must be
+     * absolute, read at <code>readNanos</code> by a listing started at
+     * <code>listedNanos</code> (both as of {@link System#nanoTime()}) may
+     * still be served.
+     */
+    synchronized boolean isValid( UnixSshPath path, long listedNanos, long readNanos ) {
+        if ( System.nanoTime() - readNanos > maxAgeNanos ) {
+            return false;
+        }
+        if ( forgotten != null && forgotten - listedNanos >= 0 ) {
+            return false;
+        }
+        Long changed = entryChanges.get( path );
+        if ( changed != null && changed - listedNanos >= 0 ) {
+            return false;
+        }
+        for ( UnixSshPath ancestor = path; ancestor != null; ancestor = ancestor.getParent() ) {
+            changed = treeChanges.get( ancestor );
+            if ( changed != null && changed - listedNanos >= 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void record( Map<UnixSshPath, Long> changes, UnixSshPath path ) {
+        long now = System.nanoTime();
+        // kept in the order they happened, so the old ones are up front
+        changes.remove( path );
+        changes.put( path, now );
+        Iterator<Long> iterator = changes.values().iterator();
+        while ( iterator.hasNext() ) {
+            long changed = iterator.next();
+            if ( now - changed <= maxAgeNanos && changes.size() <= MAXIMUM_CHANGES ) {
+                break;
+            }
+            if ( forgotten == null || changed - forgotten > 0 ) {
+                forgotten = changed;
+            }
+            iterator.remove();
+        }
+    }
+}
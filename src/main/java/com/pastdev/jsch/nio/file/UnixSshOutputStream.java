@@ -0,0 +1,112 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+
+
+/**
+ * Streams into the stdin of a single remote command. Writes are collected in
+ * a buffer the size of an ssh channel packet (configurable through
+ * <code>outputstream.buffersize</code>) so that each packet sent is full,
+ * and writes at least as large as the buffer bypass it. {@link #flush()}
+ * sends whatever is buffered as a packet of its own.
+ */
+public class UnixSshOutputStream extends OutputStream {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshOutputStream.class );
+    static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+
+    private byte[] buffer;
+    private ChannelExecWrapper channel;
+    private boolean closed;
+    private int count;
+    private OutputStream outputStream;
+    private UnixSshPath path;
+
+    UnixSshOutputStream( UnixSshPath path, String command ) throws IOException {
+        this.path = path.toAbsolutePath();
+
+        UnixSshFileSystem fileSystem = path.getFileSystem();
+        Long bufferSize = fileSystem.getLongFromEnvironment( "outputstream.buffersize" );
+        this.buffer = new byte[bufferSize == null ? DEFAULT_BUFFER_SIZE : bufferSize.intValue()];
+
+        try {
+            channel = fileSystem.getCommandRunner().open( command );
+            outputStream = channel.getOutputStream();
+        }
+        catch ( JSchException e ) {
+            throw new IOException( e );
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        try {
+            flushBuffer();
+        }
+        finally {
+            int exitCode = channel.close();
+            path.getFileSystem().provider().invalidateAttributes( path );
+            logger.debug( "write to {} exited with {}", path, exitCode );
+            if ( exitCode != 0 ) {
+                throw new IOException( "write to " + path + " failed with " + exitCode );
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if ( closed ) {
+            throw new IOException( "stream closed" );
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+        outputStream.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if ( count > 0 ) {
+            outputStream.write( buffer, 0, count );
+            count = 0;
+        }
+    }
+
+    @Override
+    public void write( byte[] bytes, int offset, int length ) throws IOException {
+        ensureOpen();
+        if ( length >= buffer.length ) {
+            flushBuffer();
+            outputStream.write( bytes, offset, length );
+            return;
+        }
+        if ( length > buffer.length - count ) {
+            flushBuffer();
+        }
+        System.arraycopy( bytes, offset, buffer, count, length );
+        count += length;
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+        ensureOpen();
+        if ( count == buffer.length ) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte)b;
+    }
+}
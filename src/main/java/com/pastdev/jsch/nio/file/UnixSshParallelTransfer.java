@@ -0,0 +1,327 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+
+
+/**
+ * Copies a file between the remote system and a local file over several exec
+ * channels at once. A single channel is limited by its window rather than by
+ * the link, so the file is split into ranges which <code>parallelism</code>
+ * workers take from a shared queue. A range that fails is retried from the
+ * first byte not known to be transferred, up to {@link #MAXIMUM_ATTEMPTS}
+ * times, without affecting the other ranges.
+ */
+class UnixSshParallelTransfer {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshParallelTransfer.class );
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int MAXIMUM_ATTEMPTS = 3;
+    static final long MAXIMUM_RANGE_SIZE = 64L * 1024 * 1024;
+    static final long MINIMUM_RANGE_SIZE = 1024 * 1024;
+    // more ranges than workers so a slow range does not hold up the end
+    static final int RANGES_PER_WORKER = 4;
+
+    private volatile boolean failed;
+    private UnixSshTransferListener listener;
+    private int parallelism;
+    private UnixSshPath path;
+    private long total;
+    private AtomicLong transferred = new AtomicLong();
+
+    UnixSshParallelTransfer( UnixSshPath path, int parallelism, UnixSshTransferListener listener ) {
+        if ( parallelism < 1 ) {
+            throw new IllegalArgumentException( "parallelism must be at least 1" );
+        }
+        this.path = path.toAbsolutePath();
+        this.parallelism = parallelism;
+        this.listener = listener;
+    }
+
+    /**
+     * Copies the remote file to <code>localTarget</code>, replacing it if it
+     * exists.
+     */
+    void download( Path localTarget ) throws IOException {
+        total = path.getFileSystem().provider().readAttributes( path, BasicFileAttributes.class ).size();
+        try (final FileChannel local = FileChannel.open( localTarget, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE )) {
+            if ( total > 0 ) {
+                // size it up front so ranges can land in any order
+                local.write( ByteBuffer.allocate( 1 ), total - 1 );
+            }
+            run( new RangeTransfer() {
+                @Override
+                public void transfer( Range range ) throws IOException, JSchException {
+                    download( range, local );
+                }
+            } );
+        }
+    }
+
+    private void download( Range range, FileChannel local ) throws IOException, JSchException {
+        UnixSshFileSystem fileSystem = path.getFileSystem();
+        ChannelExecWrapper channel = fileSystem.getCommandRunner().open(
+                fileSystem.provider().rangedReadCommand( path, range.position, range.end - range.position ) );
+        ByteBuffer buffer = fileSystem.getBufferPool().acquire( BUFFER_SIZE );
+        int exitCode;
+        try (InputStream in = channel.getInputStream()) {
+            int read;
+            while ( !failed && (read = in.read( buffer.array(), 0, buffer.capacity() )) > 0 ) {
+                buffer.clear();
+                buffer.limit( read );
+                while ( buffer.hasRemaining() ) {
+                    range.position += local.write( buffer, range.position );
+                }
+                progress( read );
+            }
+        }
+        finally {
+            exitCode = channel.close();
+            fileSystem.getBufferPool().release( buffer );
+        }
+        if ( exitCode != 0 && !failed ) {
+            throw new IOException( "ranged read failed " + exitCode );
+        }
+    }
+
+    private void progress( long count ) {
+        long current = transferred.addAndGet( count );
+        if ( listener != null ) {
+            listener.progress( current, total );
+        }
+    }
+
+    private void run( final RangeTransfer transfer ) throws IOException {
+        final Queue<Range> ranges = new ConcurrentLinkedQueue<Range>( split( total, parallelism ) );
+        int workers = Math.min( parallelism, ranges.size() );
+        logger.debug( "transferring {} bytes of {} in {} ranges with {} workers", total, path, ranges.size(), workers );
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for ( int i = 0; i < workers; i++ ) {
+            futures.add( path.getFileSystem().getExecutorService().submit( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Range range;
+                    while ( !failed && (range = ranges.poll()) != null ) {
+                        try {
+                            transfer( transfer, range );
+                        }
+                        catch ( IOException e ) {
+                            failed = true;
+                            throw e;
+                        }
+                    }
+                    return null;
+                }
+            } ) );
+        }
+
+        IOException failure = null;
+        for ( Future<Void> future : futures ) {
+            try {
+                future.get();
+            }
+            catch ( InterruptedException e ) {
+                failed = true;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "interrupted transferring " + path );
+            }
+            catch ( ExecutionException e ) {
+                if ( failure == null ) {
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException)e.getCause()
+                            : new IOException( e.getCause() );
+                }
+            }
+        }
+        if ( failure != null ) {
+            throw failure;
+        }
+    }
+
+    private String sha256( FileChannel local ) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new IOException( e );
+        }
+
+        UnixSshBufferPool bufferPool = path.getFileSystem().getBufferPool();
+        ByteBuffer buffer = bufferPool.acquire( BUFFER_SIZE );
+        try {
+            long position = 0;
+            int read;
+            while ( (read = local.read( buffer, position )) > 0 ) {
+                buffer.flip();
+                digest.update( buffer );
+                buffer.clear();
+                position += read;
+            }
+        }
+        finally {
+            bufferPool.release( buffer );
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for ( byte b : digest.digest() ) {
+            builder.append( String.format( "%02x", b & 0xff ) );
+        }
+        return builder.toString();
+    }
+
+    static List<Range> split( long size, int parallelism ) {
+        long rangeSize = (size + (long)parallelism * RANGES_PER_WORKER - 1) / ((long)parallelism * RANGES_PER_WORKER);
+        rangeSize = Math.max( MINIMUM_RANGE_SIZE, Math.min( MAXIMUM_RANGE_SIZE, rangeSize ) );
+        // ranges start on a block boundary, or bsd dd writes them a byte at
+        // a time
+        int blockSize = UnixSshFileSystemProvider.WRITE_BLOCK_SIZE;
+        rangeSize = (rangeSize + blockSize - 1) / blockSize * blockSize;
+
+        List<Range> ranges = new ArrayList<Range>();
+        for ( long start = 0; start < size; start += rangeSize ) {
+            ranges.add( new Range( start, Math.min( size, start + rangeSize ) ) );
+        }
+        return ranges;
+    }
+
+    private void transfer( RangeTransfer transfer, Range range ) throws IOException {
+        for ( int attempt = 1; range.position < range.end && !failed; attempt++ ) {
+            try {
+                transfer.transfer( range );
+                if ( range.position < range.end && !failed ) {
+                    throw new EOFException( "range ended at " + range.position + " rather than " + range.end );
+                }
+            }
+            catch ( IOException | JSchException e ) {
+                if ( attempt >= MAXIMUM_ATTEMPTS ) {
+                    throw new IOException( "giving up on [" + range.position + ", " + range.end + ") of "
+                            + path + " after " + attempt + " attempts", e );
+                }
+                logger.debug( "attempt {} at [{}, {}) of {} failed: {}", attempt, range.position, range.end, path, e );
+                if ( listener != null ) {
+                    listener.retrying( range.position, range.end, attempt, e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies <code>localSource</code> to the remote file, replacing it if it
+     * exists. The remote file is sized up front so that each range can be
+     * written into place. If <code>verify</code> is set, the sha-256 of the
+     * remote file is compared with that of <code>localSource</code>
+     * afterwards.
+     */
+    void upload( Path localSource, boolean verify ) throws IOException {
+        total = Files.size( localSource );
+        UnixSshFileSystemProvider provider = path.getFileSystem().provider();
+        provider.truncateFile( path, total );
+        try (final FileChannel local = FileChannel.open( localSource, StandardOpenOption.READ )) {
+            run( new RangeTransfer() {
+                @Override
+                public void transfer( Range range ) throws IOException, JSchException {
+                    upload( range, local );
+                }
+            } );
+
+            if ( verify ) {
+                String localDigest = sha256( local );
+                String remoteDigest = provider.sha256( path );
+                if ( !localDigest.equalsIgnoreCase( remoteDigest ) ) {
+                    throw new IOException( "upload of " + localSource + " to " + path
+                            + " failed verification, local sha-256 " + localDigest
+                            + " remote sha-256 " + remoteDigest );
+                }
+                logger.debug( "verified upload of {} to {}: {}", localSource, path, localDigest );
+            }
+        }
+    }
+
+    private void upload( Range range, FileChannel local ) throws IOException, JSchException {
+        // there is no telling how much of what was sent made it to disk until
+        // dd exits cleanly, so unlike download a range only advances when
+        // all of it is written
+        UnixSshFileSystem fileSystem = path.getFileSystem();
+        ChannelExecWrapper channel = fileSystem.getCommandRunner().open(
+                fileSystem.provider().writeCommand( path, range.position ) );
+        ByteBuffer buffer = fileSystem.getBufferPool().acquire( BUFFER_SIZE );
+        long position = range.position;
+        int exitCode;
+        try (OutputStream out = channel.getOutputStream()) {
+            while ( !failed && position < range.end ) {
+                buffer.clear();
+                buffer.limit( (int)Math.min( buffer.capacity(), range.end - position ) );
+                int read = local.read( buffer, position );
+                if ( read < 0 ) {
+                    throw new EOFException( "local file ended at " + position + " rather than " + range.end );
+                }
+                out.write( buffer.array(), 0, read );
+                position += read;
+                progress( read );
+            }
+        }
+        finally {
+            exitCode = channel.close();
+            fileSystem.getBufferPool().release( buffer );
+            if ( exitCode != 0 || position < range.end ) {
+                progress( range.position - position );
+            }
+        }
+        if ( exitCode != 0 && !failed ) {
+            throw new IOException( "dd failed " + exitCode );
+        }
+        if ( exitCode == 0 && position == range.end ) {
+            range.position = position;
+        }
+    }
+
+    static class Range {
+        final long end;
+        long position;
+
+        Range( long start, long end ) {
+            this.position = start;
+            this.end = end;
+        }
+    }
+
+    private static interface RangeTransfer {
+        /**
+         * Transfers from <code>range.position</code> up to
+         * <code>range.end</code>, advancing <code>range.position</code> past
+         * bytes known to be transferred so a retry can pick up where this
+         * left off.
+         */
+        public void transfer( Range range ) throws IOException, JSchException;
+    }
+}
@@ -21,10 +21,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 
 public class UnixSshPath extends AbstractSshPath {
     private boolean absolute;
+    // every attribute of this path as of the listing that produced it
+    private Map<String, Object> attributes;
+    private long attributesListed;
+    private long attributesRead;
     private String[] parts;
 
     UnixSshPath( UnixSshFileSystem unixSshFileSystem, String path ) {
@@ -110,6 +115,32 @@ public class UnixSshPath extends AbstractSshPath {
         return toString().equals( otherPath.toString() );
     }
 
+    /**
+     * Returns the attributes read along with this path by a directory
+     * listing, or null if it did not come from one, the file system does not
+     * cache attributes, they have grown too old or it has since been changed
+     * through the provider, through this path or any other equal to it.
+     */
+    Map<String, Object> getAttributes() {
+        UnixSshListedAttributes listedAttributes = getFileSystem().getListedAttributes();
+        if ( listedAttributes == null ) {
+            return null;
+        }
+        if ( attributes != null && !listedAttributes.isValid( toAbsolutePath(), attributesListed, attributesRead ) ) {
+            attributes = null;
+        }
+        return attributes;
+    }
+
+    /**
+     * Returns the attributes read along with this path by a directory
+     * listing, or null if it did not come from one, however old they are.
+     * Only for whoever is reading the listing as it arrives.
+     */
+    Map<String, Object> getListedAttributes() {
+        return attributes;
+    }
+
     /** {@inheritDoc} */
     @Override
     public UnixSshPath getFileName() {
@@ -334,6 +365,16 @@ public class UnixSshPath extends AbstractSshPath {
         return resolveSibling( new UnixSshPath( getFileSystem(), other ) );
     }
 
+    /**
+     * Leaves <code>attributes</code> on this path, as read by a listing
+     * started at <code>listed</code> (as of {@link System#nanoTime()}).
+     */
+    void setAttributes( Map<String, Object> attributes, long listed ) {
+        this.attributes = attributes;
+        this.attributesListed = listed;
+        this.attributesRead = System.nanoTime();
+    }
+
     /** {@inheritDoc} */
     @Override
     public boolean startsWith( Path other ) {
@@ -0,0 +1,190 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.nio.file.DirectoryStream.Filter;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+
+/**
+ * The {@link PathMatcher} of a {@link UnixSshFileSystem}, which remembers
+ * the pattern it was compiled from so that a directory listing filtered by
+ * it can leave the matching to the remote find, and only the matching
+ * entries cross the wire.
+ * <p>
+ * As a {@link Filter} it matches the file name of each entry, just as
+ * {@link java.nio.file.Files#newDirectoryStream(Path, String)} does with its
+ * glob, so it can be handed straight to
+ * {@link java.nio.file.Files#newDirectoryStream(Path, Filter)}. That method,
+ * unlike
+ * {@link UnixSshFileSystemProvider#newDirectoryStream(Path, String)}, wraps
+ * its matcher in a filter of its own, which the provider cannot see into.
+ * <p>
+ * Globs made of <code>*</code>, <code>?</code>, simple bracket expressions
+ * and non nested <code>{a,b}</code> groups become <code>-name</code>
+ * predicates, as do regular expressions made of nothing but literals,
+ * <code>.</code> and <code>.*</code>. Anything else is matched locally. The
+ * remote predicate only ever narrows the listing down to a superset of the
+ * matches, every entry is still checked locally.
+ */
+public class UnixSshPathMatcher implements PathMatcher, Filter<Path> {
+    // more alternatives than this is not worth a find predicate
+    private static final int MAXIMUM_NAMES = 32;
+    // punctuation that means the same to java and fnmatch, outside of globs
+    private static final String LITERAL_PUNCTUATION = "-_ ,.:@%=~#";
+
+    private Pattern pattern;
+    private String findPredicate;
+
+    UnixSshPathMatcher( String syntax, String patternString, Pattern pattern ) {
+        this.pattern = pattern;
+
+        List<String> names = null;
+        if ( syntax.equalsIgnoreCase( "glob" ) ) {
+            names = globNames( patternString );
+        }
+        else if ( syntax.equalsIgnoreCase( "regex" ) ) {
+            String name = regexName( patternString );
+            if ( name != null ) {
+                names = Collections.singletonList( name );
+            }
+        }
+        if ( names != null && !names.isEmpty() && names.size() <= MAXIMUM_NAMES ) {
+            StringBuilder builder = new StringBuilder();
+            for ( String name : names ) {
+                if ( builder.length() > 0 ) {
+                    builder.append( " -o " );
+                }
+                builder.append( "-name " ).append( singleQuote( name ) );
+            }
+            findPredicate = names.size() == 1
+                    ? builder.toString()
+                    : "\\( " + builder.append( " \\)" ).toString();
+        }
+    }
+
+    @Override
+    public boolean accept( Path entry ) {
+        return matches( entry.getFileName() );
+    }
+
+    /**
+     * Returns the globs that <code>glob</code> expands to once its
+     * <code>{a,b}</code> groups are expanded, or null if they are nested or
+     * unbalanced.
+     */
+    private static List<String> expandBraces( String glob ) {
+        int open = glob.indexOf( '{' );
+        if ( open < 0 ) {
+            return Collections.singletonList( glob );
+        }
+        int close = glob.indexOf( '}', open );
+        if ( close < 0 || glob.lastIndexOf( '{', close ) != open ) {
+            return null;
+        }
+        List<String> expanded = new ArrayList<String>();
+        for ( String alternative : glob.substring( open + 1, close ).split( ",", -1 ) ) {
+            List<String> alternatives = expandBraces( glob.substring( 0, open ) + alternative + glob.substring( close + 1 ) );
+            if ( alternatives == null ) {
+                return null;
+            }
+            expanded.addAll( alternatives );
+        }
+        return expanded;
+    }
+
+    /**
+     * Returns the predicate selecting, from a find, at least every entry
+     * whose file name this matcher accepts, or null if the pattern cannot be
+     * expressed as one.
+     */
+    String findPredicate() {
+        return findPredicate;
+    }
+
+    private static List<String> globNames( String glob ) {
+        for ( int i = 0; i < glob.length(); i++ ) {
+            char c = glob.charAt( i );
+            if ( !Character.isLetterOrDigit( c ) && LITERAL_PUNCTUATION.indexOf( c ) < 0 && "*?[]{}!".indexOf( c ) < 0 ) {
+                return null;
+            }
+        }
+        List<String> names = expandBraces( glob );
+        if ( names == null ) {
+            return null;
+        }
+        List<String> simplified = new ArrayList<String>();
+        for ( String name : names ) {
+            // fnmatch and java disagree on negation and classes
+            int open = name.indexOf( '[' );
+            while ( open >= 0 ) {
+                int close = name.indexOf( ']', open + 2 );
+                if ( close < 0 ) {
+                    return null;
+                }
+                String expression = name.substring( open + 1, close );
+                if ( expression.indexOf( '^' ) >= 0 || expression.indexOf( '[' ) >= 0 ) {
+                    return null;
+                }
+                open = name.indexOf( '[', close );
+            }
+            // within a single file name ** is no different from *
+            simplified.add( name.replace( "**", "*" ) );
+        }
+        return simplified;
+    }
+
+    @Override
+    public boolean matches( Path path ) {
+        return pattern.matcher( path.toString() ).matches();
+    }
+
+    /**
+     * Returns the glob equivalent to <code>regex</code>, or null if it is
+     * made of more than literals, <code>.</code> and <code>.*</code>.
+     */
+    private static String regexName( String regex ) {
+        StringBuilder builder = new StringBuilder();
+        int start = regex.startsWith( "^" ) ? 1 : 0;
+        int end = regex.endsWith( "$" ) && !regex.endsWith( "\\$" ) ? regex.length() - 1 : regex.length();
+        for ( int i = start; i < end; i++ ) {
+            char c = regex.charAt( i );
+            if ( c == '.' ) {
+                if ( i + 1 < end && regex.charAt( i + 1 ) == '*' ) {
+                    builder.append( '*' );
+                    i++;
+                }
+                else {
+                    builder.append( '?' );
+                }
+            }
+            else if ( c == '\\' ) {
+                if ( ++i >= end || Character.isLetterOrDigit( regex.charAt( i ) ) ) {
+                    // \d and friends are classes, not literals
+                    return null;
+                }
+                c = regex.charAt( i );
+                if ( c == '*' || c == '?' || c == '[' || c == ']' || c == '\\' ) {
+                    builder.append( '\\' );
+                }
+                builder.append( c );
+            }
+            else if ( Character.isLetterOrDigit( c ) || LITERAL_PUNCTUATION.indexOf( c ) >= 0 ) {
+                builder.append( c );
+            }
+            else {
+                return null;
+            }
+        }
+        String name = builder.toString();
+        return name.indexOf( '/' ) >= 0 ? null : name;
+    }
+
+    private static String singleQuote( String string ) {
+        return "'" + string.replace( "'", "'\\''" ) + "'";
+    }
+}
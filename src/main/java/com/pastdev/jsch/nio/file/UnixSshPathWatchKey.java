@@ -38,6 +38,7 @@ public class UnixSshPathWatchKey implements WatchKey, Runnable {
     private Map<UnixSshPath, UnixSshPathWatchEvent<Path>> modifyMap;
     private long pollingInterval;
     private TimeUnit pollingIntervalTimeUnit;
+    private boolean runRequested;
     private State state;
     private UnixSshFileSystemWatchService watchService;
 
@@ -235,8 +236,12 @@ public class UnixSshPathWatchKey implements WatchKey, Runnable {
 
                 try {
                     pollerLock.lock();
-                    logger.trace( "poller entering await {} {}", pollingInterval, pollingIntervalTimeUnit );
-                    runImmediately.await( pollingInterval, pollingIntervalTimeUnit );
+                    // a request made while we were polling must not be lost
+                    if ( !runRequested ) {
+                        logger.trace( "poller entering await {} {}", pollingInterval, pollingIntervalTimeUnit );
+                        runImmediately.await( pollingInterval, pollingIntervalTimeUnit );
+                    }
+                    runRequested = false;
                 }
                 finally {
                     pollerLock.unlock();
@@ -256,6 +261,7 @@ public class UnixSshPathWatchKey implements WatchKey, Runnable {
     void runImmediately() {
         try {
             pollerLock.lock();
+            runRequested = true;
             runImmediately.signal();
         }
         finally {
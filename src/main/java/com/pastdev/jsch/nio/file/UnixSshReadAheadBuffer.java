@@ -0,0 +1,268 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Read-ahead for a {@link UnixSshSeekableByteChannel}. As long as each read
+ * starts where the last one ended, reads are served from a window that
+ * doubles in size (from <code>minimumWindowSize</code> up to
+ * <code>maximumWindowSize</code>) every time a new one is fetched, and the
+ * window following the current one is fetched in the background while the
+ * current one is consumed. Any other read is treated as random access: the
+ * windows are dropped, the window size goes back to the minimum and exactly
+ * the requested bytes are read. Windows are taken from the file system's
+ * {@link UnixSshBufferPool} and given back once discarded.
+ */
+class UnixSshReadAheadBuffer {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshReadAheadBuffer.class );
+
+    private UnixSshBufferPool bufferPool;
+    private UnixSshSeekableByteChannel channel;
+    private Window current;
+    private int maximumWindowSize;
+    private int minimumWindowSize;
+    private Window next;
+    private long nextPosition = -1;
+    private UnixSshReadAheadStatistics statistics;
+    private int windowSize;
+
+    UnixSshReadAheadBuffer( UnixSshSeekableByteChannel channel, int minimumWindowSize, int maximumWindowSize ) {
+        if ( minimumWindowSize <= 0 || maximumWindowSize < minimumWindowSize ) {
+            throw new IllegalArgumentException( "invalid read-ahead window [" + minimumWindowSize
+                    + ", " + maximumWindowSize + "]" );
+        }
+        this.bufferPool = channel.getPath().getFileSystem().getBufferPool();
+        this.channel = channel;
+        this.minimumWindowSize = minimumWindowSize;
+        this.maximumWindowSize = maximumWindowSize;
+        this.windowSize = minimumWindowSize;
+        this.statistics = channel.getPath().getFileSystem().getReadAheadStatistics();
+    }
+
+    private void discard() {
+        if ( current != null ) {
+            current.discard();
+            current = null;
+        }
+        if ( next != null ) {
+            next.discard();
+            next = null;
+        }
+    }
+
+    private ByteBuffer fetch( Window window ) throws IOException {
+        // pooled by the window size, not whatever is left of the file
+        ByteBuffer bytes = bufferPool.acquire( window.capacity );
+        try {
+            bytes.limit( window.length );
+            channel.readRemote( window.start, bytes );
+        }
+        catch ( IOException | RuntimeException e ) {
+            bufferPool.release( bytes );
+            throw e;
+        }
+        bytes.flip();
+        statistics.fetched( bytes.remaining() );
+        return bytes;
+    }
+
+    /**
+     * Drops any buffered bytes in <code>[start, end)</code>. Must be called
+     * before anything changes the remote file.
+     */
+    void invalidate( long start, long end ) {
+        if ( (current != null && current.overlaps( start, end ))
+                || (next != null && next.overlaps( start, end )) ) {
+            discard();
+        }
+    }
+
+    private Window nextWindow( long start, long size ) {
+        Window window = new Window( start, windowSize, (int)Math.min( windowSize, size - start ) );
+        windowSize = (int)Math.min( (long)windowSize * 2, maximumWindowSize );
+        return window;
+    }
+
+    private void prefetch( long size ) {
+        final long start = current.end();
+        if ( next != null || current.bytes.remaining() < current.length || start >= size ) {
+            return;
+        }
+
+        final Window window = nextWindow( start, size );
+        window.future = channel.getPath().getFileSystem().getExecutorService().submit( new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws Exception {
+                if ( window.isDiscarded() ) {
+                    return null;
+                }
+                ByteBuffer bytes = fetch( window );
+                window.complete( bytes );
+                return bytes;
+            }
+        } );
+        next = window;
+    }
+
+    /**
+     * Reads from <code>position</code> into <code>bytes</code>, where
+     * <code>size</code> is the current size of the file and
+     * <code>position</code> is less than it.
+     */
+    int read( long position, ByteBuffer bytes, long size ) throws IOException {
+        if ( !bytes.hasRemaining() ) {
+            return 0;
+        }
+
+        int read;
+        if ( position != nextPosition && (current == null || !current.contains( position )) ) {
+            logger.trace( "random access at {}, dropping read-ahead", position );
+            discard();
+            windowSize = minimumWindowSize;
+            statistics.miss();
+            read = channel.readRemote( position, bytes );
+        }
+        else {
+            boolean hit = true;
+            read = 0;
+            while ( bytes.hasRemaining() && position + read < size ) {
+                long offset = position + read;
+                if ( current != null && current.contains( offset ) ) {
+                    read += current.copy( offset, bytes );
+                    continue;
+                }
+                if ( current != null ) {
+                    current.discard();
+                    current = null;
+                }
+
+                if ( next != null && next.contains( offset ) && resolve( next ) ) {
+                    current = next;
+                    next = null;
+                }
+                else {
+                    if ( next != null ) {
+                        next.discard();
+                        next = null;
+                    }
+                    hit = false;
+                    current = nextWindow( offset, size );
+                    current.complete( fetch( current ) );
+                    if ( !current.bytes.hasRemaining() ) {
+                        // file got shorter behind our back
+                        break;
+                    }
+                }
+                prefetch( size );
+            }
+            if ( hit ) {
+                statistics.hit();
+            }
+            else {
+                statistics.miss();
+            }
+        }
+        nextPosition = position + read;
+        return read;
+    }
+
+    void close() {
+        discard();
+    }
+
+    private boolean resolve( Window window ) throws IOException {
+        try {
+            return window.future.get() != null;
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted waiting on read-ahead of " + channel.getPath() );
+        }
+        catch ( ExecutionException e ) {
+            // let the synchronous fetch surface the error if it persists
+            logger.debug( "read-ahead of {} at {} failed: {}", channel.getPath(), window.start, e.getCause() );
+            return false;
+        }
+    }
+
+    private class Window {
+        private ByteBuffer bytes;
+        private int capacity;
+        private int consumed;
+        private boolean discarded;
+        private Future<ByteBuffer> future;
+        private int length;
+        private long start;
+
+        private Window( long start, int capacity, int length ) {
+            this.start = start;
+            this.capacity = capacity;
+            this.length = length;
+        }
+
+        private synchronized void complete( ByteBuffer bytes ) {
+            if ( discarded ) {
+                // nobody will read it, so it goes straight back
+                statistics.wasted( bytes.remaining() );
+                bufferPool.release( bytes );
+                return;
+            }
+            this.bytes = bytes;
+        }
+
+        /**
+         * Only valid for resolved windows, <code>next</code> is checked
+         * against its requested range.
+         */
+        private boolean contains( long offset ) {
+            return offset >= start && offset < (bytes == null ? start + length : end());
+        }
+
+        private int copy( long offset, ByteBuffer target ) {
+            ByteBuffer source = bytes.duplicate();
+            source.position( (int)(offset - start) );
+            if ( source.remaining() > target.remaining() ) {
+                source.limit( source.position() + target.remaining() );
+            }
+            int count = source.remaining();
+            target.put( source );
+            consumed += count;
+            return count;
+        }
+
+        private synchronized void discard() {
+            if ( discarded ) {
+                return;
+            }
+            discarded = true;
+            if ( bytes != null ) {
+                statistics.wasted( Math.max( 0, bytes.remaining() - consumed ) );
+                bufferPool.release( bytes );
+                bytes = null;
+            }
+        }
+
+        private long end() {
+            return start + bytes.remaining();
+        }
+
+        private synchronized boolean isDiscarded() {
+            return discarded;
+        }
+
+        private boolean overlaps( long start, long end ) {
+            return start < this.start + length && end > this.start;
+        }
+    }
+}
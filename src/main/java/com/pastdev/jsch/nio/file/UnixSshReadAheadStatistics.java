@@ -0,0 +1,64 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters for the read-ahead done by {@link UnixSshSeekableByteChannel}'s.
+ * A hit is a read served entirely from a window that was already fetched (or
+ * was being prefetched), a miss is a read that had to wait on a synchronous
+ * remote request. Fetched bytes are all bytes brought over by read-ahead,
+ * wasted bytes are the ones that were discarded without ever being read, so
+ * <code>wasted / fetched</code> tells you how much the window overshoots.
+ */
+public class UnixSshReadAheadStatistics {
+    private AtomicLong fetchedBytes = new AtomicLong();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong wastedBytes = new AtomicLong();
+
+    void fetched( long bytes ) {
+        fetchedBytes.addAndGet( bytes );
+    }
+
+    public long getFetchedBytes() {
+        return fetchedBytes.get();
+    }
+
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getWastedBytes() {
+        return wastedBytes.get();
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    void wasted( long bytes ) {
+        wastedBytes.addAndGet( bytes );
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + ", misses=" + getMisses() + ", hitRatio=" + getHitRatio()
+                + ", fetchedBytes=" + getFetchedBytes() + ", wastedBytes=" + getWastedBytes();
+    }
+}
@@ -0,0 +1,235 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+
+
+/**
+ * Copies, or moves, a whole tree within the remote system with a single
+ * remote script. A find walks the source, directories ahead of their
+ * contents, and hands batches of entries to a shell that creates each
+ * directory or copies each file and prints a line with the outcome, so that
+ * every entry can be reported to a {@link UnixSshCopyListener} as the copy
+ * progresses, while no file crosses the wire.
+ * <p>
+ * With {@link StandardCopyOption#COPY_ATTRIBUTES} files are copied with
+ * <code>cp -p</code>, and a second, depth first, pass gives each directory
+ * the mode and timestamps of its source once its contents are in place.
+ * Links are followed unless {@link LinkOption#NOFOLLOW_LINKS} is given.
+ * Without {@link StandardCopyOption#REPLACE_EXISTING} an existing target
+ * fails the copy before anything is copied, with it the source is merged
+ * into the target, entry by entry.
+ * <p>
+ * A move is a rename whenever the target does not exist and is on the same
+ * device as the source. Otherwise it is a copy that keeps attributes and
+ * links, after which the source is removed, only if every entry was copied.
+ */
+class UnixSshRecursiveCopy {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshRecursiveCopy.class );
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private boolean attributes;
+    private boolean follow;
+    private UnixSshPath from;
+    private UnixSshCopyListener listener;
+    private boolean move;
+    private boolean replace;
+    private UnixSshPath to;
+
+    UnixSshRecursiveCopy( UnixSshPath from, UnixSshPath to, boolean move, Set<CopyOption> copyOptions, UnixSshCopyListener listener ) {
+        this.from = from;
+        this.to = to;
+        this.move = move;
+        this.listener = listener;
+        this.attributes = move || copyOptions.contains( StandardCopyOption.COPY_ATTRIBUTES );
+        this.follow = !move && !copyOptions.contains( LinkOption.NOFOLLOW_LINKS );
+        this.replace = copyOptions.contains( StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * Returns the script that copies the entries of the find it is run from,
+     * given the source and target as its first two arguments, and prints the
+     * outcome of each, or of the failed ones only if
+     * <code>attributesOnly</code>, in which case it copies the mode and
+     * timestamps of directories rather than the directories themselves.
+     */
+    private String batchScript( boolean attributesOnly ) {
+        UnixSshFileSystem fileSystem = from.getFileSystem();
+        String testCommand = fileSystem.getCommand( "test" );
+        String report = "printf \"%d" + UnixSshFileSystemProvider.ASCII_UNIT_SEPARATOR + "%s"
+                + UnixSshFileSystemProvider.ASCII_UNIT_SEPARATOR + "\" $s \"$e\"; echo $m; ";
+
+        // without globbing, echo $m joins a multi line message into one line
+        StringBuilder scriptBuilder = new StringBuilder( "set -f; f=$1; t=$2; shift 2; r=0; " )
+                .append( "for e; do m=; d=\"$t${e#\"$f\"}\"; " );
+        if ( attributesOnly ) {
+            String modeFormat = fileSystem.getVariant( "stat" ) == Variant.BSD ? " -f %Lp" : " -c %a";
+            scriptBuilder.append( "m=$(" ).append( fileSystem.getCommand( "chmod" ) ).append( " $(" )
+                    .append( fileSystem.getCommand( "stat" ) ).append( follow ? " -L" : "" ).append( modeFormat )
+                    .append( " \"$e\") \"$d\" 2>&1 && " ).append( fileSystem.getCommand( "touch" ) )
+                    .append( " -r \"$e\" \"$d\" 2>&1); s=$?; " )
+                    .append( "if " ).append( testCommand ).append( " $s != 0; then r=1; " ).append( report )
+                    .append( "fi; " );
+        }
+        else {
+            scriptBuilder.append( "if " ).append( testCommand ).append( " -d \"$e\"" );
+            if ( !follow ) {
+                scriptBuilder.append( " && ! " ).append( testCommand ).append( " -L \"$e\"" );
+            }
+            scriptBuilder.append( "; then " );
+            if ( replace ) {
+                scriptBuilder.append( testCommand ).append( " -d \"$d\" || " );
+            }
+            // cp would copy into a directory rather than over it
+            scriptBuilder.append( "m=$(" ).append( fileSystem.getCommand( "mkdir" ) ).append( " \"$d\" 2>&1); " )
+                    .append( "elif " ).append( testCommand ).append( " -d \"$d\" && ! " ).append( testCommand )
+                    .append( " -L \"$d\"; then m=\"$d: is a directory\"; false; " )
+                    .append( "else m=$(" ).append( fileSystem.getCommand( "cp" ) )
+                    .append( follow ? " -RL" : " -RP" ).append( replace ? "f" : "" ).append( attributes ? "p" : "" )
+                    .append( " \"$e\" \"$d\" 2>&1); fi; s=$?; " )
+                    .append( testCommand ).append( " $s = 0 || r=1; " ).append( report );
+        }
+        return scriptBuilder.append( "done; exit $r" ).toString();
+    }
+
+    private String command() {
+        UnixSshFileSystem fileSystem = from.getFileSystem();
+        String fromString = from.toAbsolutePath().quotedString();
+        String toString = to.toAbsolutePath().quotedString();
+        String testCommand = fileSystem.getCommand( "test" );
+        String findCommand = fileSystem.getCommand( "find" ) + (follow ? " -L " : " ") + fromString;
+        String arguments = " sh " + fromString + " " + toString + " {} + || r=1; ";
+
+        StringBuilder commandBuilder = new StringBuilder( "{ " )
+                .append( testCommand ).append( " -e " ).append( fromString ).append( " || " )
+                .append( testCommand ).append( " -L " ).append( fromString )
+                .append( " || exit " ).append( UnixSshFileSystemProvider.EXIT_NO_SUCH_FILE ).append( "; " );
+        String toExists = testCommand + " -e " + toString + " || " + testCommand + " -L " + toString;
+        if ( !replace ) {
+            commandBuilder.append( "if " ).append( toExists ).append( "; then exit " )
+                    .append( UnixSshFileSystemProvider.EXIT_FILE_EXISTS ).append( "; fi; " );
+        }
+        if ( move ) {
+            // a rename moves the whole tree at once, if it can be done at all
+            UnixSshPath toParent = to.toAbsolutePath().getParent();
+            String statCommand = fileSystem.getCommand( "stat" );
+            String deviceFormat = fileSystem.getVariant( "stat" ) == Variant.BSD ? " -f %d " : " -c %d ";
+            commandBuilder.append( "f=$(" ).append( statCommand ).append( deviceFormat ).append( fromString )
+                    .append( ") && t=$(" ).append( statCommand ).append( " -L" ).append( deviceFormat )
+                    .append( toParent == null ? toString : toParent.quotedString() )
+                    .append( ") || exit 1; if " ).append( testCommand ).append( " \"$f\" = \"$t\" && ! { " )
+                    .append( toExists ).append( "; }; then " )
+                    .append( fileSystem.getCommand( "mv" ) ).append( " " ).append( fromString ).append( " " )
+                    .append( toString ).append( " || exit 1; printf \"0" )
+                    .append( UnixSshFileSystemProvider.ASCII_UNIT_SEPARATOR ).append( "%s" )
+                    .append( UnixSshFileSystemProvider.ASCII_UNIT_SEPARATOR ).append( "\\n\" " )
+                    .append( fromString ).append( "; exit 0; fi; " );
+        }
+        commandBuilder.append( "r=0; " ).append( findCommand ).append( " -exec sh -c '" )
+                .append( batchScript( false ) ).append( "'" ).append( arguments );
+        if ( attributes ) {
+            commandBuilder.append( findCommand ).append( " -depth -type d -exec sh -c '" )
+                    .append( batchScript( true ) ).append( "'" ).append( arguments );
+        }
+        if ( move ) {
+            commandBuilder.append( testCommand ).append( " $r = 0 && { " )
+                    .append( fileSystem.getCommand( "rm" ) ).append( " -rf " ).append( fromString )
+                    .append( " || exit 1; }; " );
+        }
+        return commandBuilder.append( "exit $r; } 2>&1" ).toString();
+    }
+
+    /**
+     * Runs the copy, reporting each entry to the listener as it goes.
+     *
+     * @throws NoSuchFileException
+     *             If the source does not exist
+     * @throws FileAlreadyExistsException
+     *             If the target exists and REPLACE_EXISTING was not given
+     * @throws IOException
+     *             If any entry failed to copy, once all the others have been
+     *             copied
+     */
+    void run() throws IOException {
+        String fromString = from.toAbsolutePath().toString();
+        String command = command();
+        logger.debug( "copying {} to {}", from, to );
+
+        ChannelExecWrapper channel;
+        try {
+            channel = from.getFileSystem().getCommandRunner().open( command );
+        }
+        catch ( JSchException e ) {
+            throw new IOException( e );
+        }
+
+        int failures = 0;
+        StringBuilder output = new StringBuilder();
+        int exitCode;
+        try {
+            BufferedReader reader = new BufferedReader( new InputStreamReader( channel.getInputStream(), UTF8 ) );
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                String[] fields = line.split( UnixSshFileSystemProvider.ASCII_UNIT_SEPARATOR, 3 );
+                if ( fields.length < 3 || !fields[1].startsWith( fromString ) ) {
+                    // anything the script itself had to say
+                    output.append( line ).append( "\n" );
+                    continue;
+                }
+
+                String relative = fields[1].substring( fromString.length() );
+                if ( relative.startsWith( UnixSshFileSystemProvider.PATH_SEPARATOR_STRING ) ) {
+                    relative = relative.substring( 1 );
+                }
+                UnixSshPath source = relative.isEmpty() ? from : from.resolve( relative );
+                UnixSshPath target = relative.isEmpty() ? to : to.resolve( relative );
+                if ( fields[0].equals( "0" ) ) {
+                    if ( listener != null ) {
+                        listener.copied( source, target );
+                    }
+                }
+                else {
+                    failures++;
+                    logger.debug( "copying {} to {} failed: {}", source, target, fields[2] );
+                    if ( listener != null ) {
+                        listener.failed( source, target, new IOException( fields[2] ) );
+                    }
+                }
+            }
+        }
+        finally {
+            exitCode = channel.close();
+        }
+
+        if ( exitCode == UnixSshFileSystemProvider.EXIT_NO_SUCH_FILE ) {
+            throw new NoSuchFileException( from.toString() );
+        }
+        if ( exitCode == UnixSshFileSystemProvider.EXIT_FILE_EXISTS ) {
+            throw new FileAlreadyExistsException( to.toString() );
+        }
+        if ( failures > 0 ) {
+            throw new IOException( failures + " entries of " + from + " failed to copy to " + to );
+        }
+        if ( exitCode != 0 ) {
+            throw new IOException( "copying " + from + " to " + to + " failed with exit code " + exitCode
+                    + ": " + output.toString().trim() );
+        }
+    }
+}
@@ -3,11 +3,12 @@ package com.pastdev.jsch.nio.file;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileAttribute;
@@ -15,15 +16,38 @@ import java.nio.file.attribute.PosixFileAttributes;
 import java.util.Set;
 
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
 public class UnixSshSeekableByteChannel implements SeekableByteChannel {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshSeekableByteChannel.class );
+    static final int DEFAULT_READAHEAD_MAX = 8 * 1024 * 1024;
+    static final int DEFAULT_READAHEAD_MIN = 64 * 1024;
+    static final int DEFAULT_WRITEBEHIND_SIZE = UnixSshFileSystemProvider.MAX_BLOCK_SIZE;
+
     private boolean append;
+    private UnixSshBlockCache blockCache;
+    private Object cachedFileKey;
+    private UnixSshBlockCache.FileVersion cachedVersion;
+    private UnixSshDiskCache diskCache;
+    // the version to fill the disk cache with, while reads may still go
+    // through the whole file
+    private PosixFileAttributes diskCacheMiss;
+    private UnixSshSeekableByteChannelHelper helper;
+    private FileChannel local;
+    private MappedByteBuffer mapped;
     private boolean open;
     private UnixSshPath path;
     private long position = 0;
+    // how far reads have gone through the file from its start
+    private long sequential = 0;
     private UnixSshFileSystemProvider provider;
     private boolean readable;
+    private UnixSshReadAheadBuffer readAhead;
     private long size;
     private boolean writeable;
+    private UnixSshWriteBehindBuffer writeBehind;
 
     public UnixSshSeekableByteChannel( UnixSshPath path, Set<? extends OpenOption> openOptions, FileAttribute<?>... createFileAttributes ) throws IOException {
         this.path = path.toAbsolutePath();
@@ -33,36 +57,48 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
 
         this.provider = path.getFileSystem().provider();
 
-        PosixFileAttributes attributes = null;
-        try {
-            provider.checkAccess( path );
-            attributes = provider.readAttributes( path, PosixFileAttributes.class );
-        }
-        catch ( NoSuchFileException e ) {
-        }
+        PosixFileAttributes attributes = provider.openFile( path, openOptions, createFileAttributes );
+        size = attributes.size();
 
-        boolean create = false;
-        if ( openOptions.contains( StandardOpenOption.CREATE_NEW ) ) {
-            if ( attributes != null ) {
-                throw new FileAlreadyExistsException( path.toString() );
+        UnixSshFileSystem fileSystem = this.path.getFileSystem();
+        if ( fileSystem.getBooleanFromEnvironment( "channel.persistent" ) ) {
+            if ( fileSystem.getVariant( "dd" ) == Variant.GNU ) {
+                helper = new UnixSshSeekableByteChannelHelper( this.path );
+            }
+            else {
+                logger.debug( "channel.persistent requires gnu dd, using a command per request for {}", this.path );
             }
-            create = true;
         }
-        else if ( openOptions.contains( StandardOpenOption.CREATE ) ) {
-            if ( attributes == null ) {
-                create = true;
+
+        diskCache = fileSystem.getDiskCache();
+        if ( diskCache != null && !writeable ) {
+            // openFile always stats, so the attributes can validate an entry
+            setLocal( diskCache.get( this.path, attributes ) );
+            if ( local == null ) {
+                diskCacheMiss = attributes;
             }
         }
-        else if ( attributes == null ) {
-            throw new NoSuchFileException( "file not found and no CREATE/CREATE_NEW specified for "
-                    + path.toString() );
+
+        blockCache = fileSystem.getBlockCache();
+        if ( blockCache != null ) {
+            // cached blocks can only be trusted until this channel writes
+            cachedFileKey = attributes.fileKey();
+            cachedVersion = new UnixSshBlockCache.FileVersion( attributes );
         }
 
-        if ( create ) {
-            attributes = provider.createFile( path, createFileAttributes );
+        if ( readable && local == null && fileSystem.getBooleanFromEnvironment( "channel.readahead" ) ) {
+            Long minimum = fileSystem.getLongFromEnvironment( "channel.readahead.min" );
+            Long maximum = fileSystem.getLongFromEnvironment( "channel.readahead.max" );
+            readAhead = new UnixSshReadAheadBuffer( this,
+                    minimum == null ? DEFAULT_READAHEAD_MIN : minimum.intValue(),
+                    maximum == null ? DEFAULT_READAHEAD_MAX : maximum.intValue() );
         }
 
-        size = attributes.size();
+        if ( writeable && fileSystem.getBooleanFromEnvironment( "channel.writebehind" ) ) {
+            Long capacity = fileSystem.getLongFromEnvironment( "channel.writebehind.size" );
+            writeBehind = new UnixSshWriteBehindBuffer( this,
+                    capacity == null ? DEFAULT_WRITEBEHIND_SIZE : capacity.intValue() );
+        }
 
         open = true;
 
@@ -71,7 +107,64 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
 
     @Override
     public void close() throws IOException {
+        if ( !open ) {
+            return;
+        }
         open = false;
+        try {
+            if ( writeBehind != null ) {
+                writeBehind.close();
+            }
+        }
+        finally {
+            if ( local != null ) {
+                local.close();
+            }
+            if ( readAhead != null ) {
+                readAhead.close();
+            }
+            if ( helper != null ) {
+                helper.close();
+            }
+        }
+    }
+
+    /**
+     * Fills the disk cache, and reads from it from now on, if this read
+     * continues reading the file from its start, or reads all of it at once.
+     * A read anywhere else means the file is not being read through, and
+     * downloading all of it is not worth it.
+     */
+    private void fillDiskCache( int length ) throws IOException {
+        if ( position != sequential ) {
+            diskCacheMiss = null;
+        }
+        else if ( position > 0 || length >= size ) {
+            PosixFileAttributes attributes = diskCacheMiss;
+            diskCacheMiss = null;
+            setLocal( diskCache.fill( path, attributes ) );
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if ( !open ) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Writes any bytes held by the write-behind buffer to the remote file.
+     * Does nothing unless <code>channel.writebehind</code> is enabled.
+     */
+    public void flush() throws IOException {
+        ensureOpen();
+        if ( writeBehind != null ) {
+            writeBehind.flush();
+        }
+    }
+
+    UnixSshPath getPath() {
+        return path;
     }
 
     @Override
@@ -86,12 +179,16 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
 
     @Override
     public UnixSshSeekableByteChannel position( long position ) throws IOException {
+        if ( writeBehind != null ) {
+            writeBehind.position( position );
+        }
         this.position = position;
         return this;
     }
 
     @Override
     public int read( ByteBuffer bytes ) throws IOException {
+        ensureOpen();
         if ( !readable ) {
             throw new NonReadableChannelException();
         }
@@ -99,8 +196,26 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
             return -1;
         }
 
-        int read = provider.read( path, position, bytes );
+        if ( writeBehind != null ) {
+            writeBehind.flush();
+        }
+        if ( diskCacheMiss != null ) {
+            fillDiskCache( bytes.remaining() );
+        }
+        int read;
+        if ( local != null ) {
+            read = readLocal( position, bytes );
+        }
+        else if ( readAhead != null ) {
+            read = readAhead.read( position, bytes, size );
+        }
+        else {
+            read = readRemote( position, bytes );
+        }
         position += read;
+        if ( diskCacheMiss != null ) {
+            sequential = position;
+        }
         if ( position > size ) {
             // sucks, means somebody else is also writing this file, bad things
             // are gonna happen here...
@@ -110,6 +225,53 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
         return read;
     }
 
+    private void invalidateBlockCache() {
+        if ( blockCache != null ) {
+            blockCache.invalidate( cachedFileKey );
+            cachedVersion = null;
+        }
+    }
+
+    private int readLocal( long position, ByteBuffer bytes ) throws IOException {
+        if ( mapped == null ) {
+            return Math.max( 0, local.read( bytes, position ) );
+        }
+        ByteBuffer source = mapped.duplicate();
+        source.position( (int)position );
+        if ( source.remaining() > bytes.remaining() ) {
+            source.limit( source.position() + bytes.remaining() );
+        }
+        int read = source.remaining();
+        bytes.put( source );
+        return read;
+    }
+
+    int readRemote( long position, ByteBuffer bytes ) throws IOException {
+        UnixSshBlockCache.FileVersion version = cachedVersion;
+        if ( version != null ) {
+            return blockCache.read( version, position, bytes, new UnixSshBlockCache.RemoteReader() {
+                @Override
+                public int read( long position, ByteBuffer bytes ) throws IOException {
+                    return readUncached( position, bytes );
+                }
+            } );
+        }
+        return readUncached( position, bytes );
+    }
+
+    private int readUncached( long position, ByteBuffer bytes ) throws IOException {
+        return helper == null
+                ? provider.read( path, position, bytes )
+                : helper.read( position, bytes );
+    }
+
+    private void setLocal( FileChannel local ) throws IOException {
+        this.local = local;
+        if ( local != null && size <= Integer.MAX_VALUE ) {
+            mapped = local.map( FileChannel.MapMode.READ_ONLY, 0, size );
+        }
+    }
+
     @Override
     public long size() throws IOException {
         return size;
@@ -117,6 +279,7 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
 
     @Override
     public UnixSshSeekableByteChannel truncate( long size ) throws IOException {
+        ensureOpen();
         if ( !writeable ) {
             throw new NonWritableChannelException();
         }
@@ -127,7 +290,20 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
             return this;
         }
 
-        provider.truncateFile( path, position );
+        if ( writeBehind != null ) {
+            writeBehind.flush();
+        }
+        if ( readAhead != null ) {
+            readAhead.invalidate( size, Long.MAX_VALUE );
+        }
+        invalidateBlockCache();
+        if ( helper == null ) {
+            provider.truncateFile( path, size );
+        }
+        else {
+            helper.truncate( size );
+            provider.invalidateFileAttributes( path );
+        }
         if ( position > size ) {
             position = size;
         }
@@ -137,6 +313,7 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
 
     @Override
     public int write( ByteBuffer bytes ) throws IOException {
+        ensureOpen();
         if ( !writeable ) {
             throw new NonWritableChannelException();
         }
@@ -144,7 +321,12 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
             position = size();
         }
 
-        int written = provider.write( path, position, bytes );
+        if ( readAhead != null ) {
+            readAhead.invalidate( position, position + bytes.remaining() );
+        }
+        int written = writeBehind == null
+                ? writeRemote( position, bytes )
+                : writeBehind.write( position, bytes );
         position += written;
         if ( position > size ) {
             size = position;
@@ -152,4 +334,16 @@ public class UnixSshSeekableByteChannel implements SeekableByteChannel {
 
         return written;
     }
+
+    int writeRemote( long position, ByteBuffer bytes ) throws IOException {
+        invalidateBlockCache();
+        try {
+            return helper == null
+                    ? provider.write( path, position, bytes )
+                    : helper.write( position, bytes );
+        }
+        finally {
+            provider.invalidateFileAttributes( path );
+        }
+    }
 }
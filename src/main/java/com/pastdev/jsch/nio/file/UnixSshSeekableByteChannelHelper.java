@@ -0,0 +1,249 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+
+
+/**
+ * A long lived remote shell loop serving reads, writes and truncates for a
+ * single file so that a {@link UnixSshSeekableByteChannel} pays one round trip
+ * per request rather than opening a new exec channel for each one. Requests
+ * are a single line, <code>op offset length</code>, followed by
+ * <code>length</code> bytes for writes. Responses are a single line,
+ * <code>O count</code> on success or <code>E</code> on failure. A read is
+ * answered with the count of bytes the file held at the offset when it was
+ * stated, followed by exactly that many bytes, padded with zeros if the file
+ * shrank or dd failed before they were all copied, and then by a second
+ * <code>O count</code> line with the number of bytes dd actually copied, so
+ * the stream stays in sync whatever happens to the file. Seeking is implicit
+ * in the offset sent with each request. Relies on GNU dd for byte addressed
+ * skip/seek.
+ */
+class UnixSshSeekableByteChannelHelper implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshSeekableByteChannelHelper.class );
+    private static final Charset US_ASCII = Charset.forName( "US-ASCII" );
+
+    private ChannelExecWrapper channel;
+    private InputStream in;
+    private OutputStream out;
+    private UnixSshPath path;
+    private byte[] writeBuffer;
+
+    UnixSshSeekableByteChannelHelper( UnixSshPath path ) {
+        this.path = path.toAbsolutePath();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if ( channel == null ) {
+            return;
+        }
+        try {
+            out.write( "q\n".getBytes( US_ASCII ) );
+            out.flush();
+        }
+        catch ( IOException e ) {
+            logger.debug( "unable to send quit to helper for {}: {}", path, e.getMessage() );
+        }
+        finally {
+            int exitCode = channel.close();
+            logger.debug( "helper for {} exited with {}", path, exitCode );
+            channel = null;
+        }
+    }
+
+    private String command() {
+        UnixSshFileSystem fileSystem = path.getFileSystem();
+        String dd = fileSystem.getCommand( "dd" );
+        String stat = fileSystem.getCommand( "stat" );
+        // fd 3 is the channel, so that dd's summary on stderr can be captured
+        // while its data goes straight out
+        return "exec 3>&1 2> /dev/null; f=" + path.quotedString() + "; "
+                + "while read o a b; do case $o in "
+                + "r) s=$(" + stat + " -c %s \"$f\") || { echo E; continue; }; "
+                + "n=$((s - a)); if [ $n -gt $b ]; then n=$b; fi; if [ $n -lt 0 ]; then n=0; fi; "
+                + "echo \"O $n\"; m=0; if [ $n -gt 0 ]; then "
+                + "m=$(LC_ALL=C " + dd + " if=\"$f\" bs=" + UnixSshFileSystemProvider.MAX_BLOCK_SIZE
+                + " iflag=skip_bytes,count_bytes skip=$a count=$n 2>&1 >&3 | "
+                + fileSystem.getCommand( "sed" ) + " -n 's/^\\([0-9][0-9]*\\) byte.*/\\1/p'); m=${m:-0}; "
+                + "if [ $m -lt $n ]; then " + dd + " if=/dev/zero bs=" + UnixSshFileSystemProvider.MAX_BLOCK_SIZE
+                + " iflag=count_bytes count=$((n - m)); fi; fi; echo \"O $m\";; "
+                // the first dd consumes exactly $b bytes of stdin before the
+                // second one can fail, so the stream stays in sync either way
+                + "w) if " + dd + " bs=$b count=1 iflag=fullblock | "
+                + dd + " of=\"$f\" bs=" + UnixSshFileSystemProvider.MAX_BLOCK_SIZE
+                + " oflag=seek_bytes seek=$a conv=notrunc; then echo \"O $b\"; else echo E; fi;; "
+                + "t) if " + fileSystem.getCommand( "truncate" ) + " -s $a \"$f\"; then echo \"O 0\"; else echo E; fi;; "
+                + "z) if s=$(" + stat + " -c %s \"$f\"); then echo \"O $s\"; else echo E; fi;; "
+                + "q) exit 0;; "
+                + "*) echo E;; "
+                + "esac; done";
+    }
+
+    private void ensureStarted() throws IOException {
+        if ( channel != null ) {
+            return;
+        }
+        try {
+            channel = path.getFileSystem().getCommandRunner().open( command() );
+            in = new BufferedInputStream( channel.getInputStream() );
+            out = channel.getOutputStream();
+        }
+        catch ( JSchException e ) {
+            throw new IOException( e );
+        }
+    }
+
+    private void fail( IOException e ) {
+        // the stream is no longer in a known state, so start over next time
+        logger.debug( "helper for {} failed: {}", path, e.getMessage() );
+        try {
+            channel.close();
+        }
+        finally {
+            channel = null;
+        }
+    }
+
+    synchronized int read( long position, ByteBuffer bytes ) throws IOException {
+        if ( !bytes.hasRemaining() ) {
+            return 0;
+        }
+        ensureStarted();
+        try {
+            long count = request( "r " + position + " " + bytes.remaining() );
+            if ( count < 0 ) {
+                throw new IOException( "read failed for " + path );
+            }
+
+            int start = bytes.position();
+            int read = 0;
+            if ( bytes.hasArray() ) {
+                while ( read < count ) {
+                    int localRead = in.read( bytes.array(), bytes.arrayOffset() + bytes.position(), (int)count - read );
+                    if ( localRead < 0 ) {
+                        throw new EOFException( "helper for " + path + " exited during read" );
+                    }
+                    bytes.position( bytes.position() + localRead );
+                    read += localRead;
+                }
+            }
+            else {
+                byte[] buffer = new byte[(int)Math.min( count, 8192 )];
+                while ( read < count ) {
+                    int localRead = in.read( buffer, 0, (int)Math.min( buffer.length, count - read ) );
+                    if ( localRead < 0 ) {
+                        throw new EOFException( "helper for " + path + " exited during read" );
+                    }
+                    bytes.put( buffer, 0, localRead );
+                    read += localRead;
+                }
+            }
+
+            // anything past what dd copied is padding
+            long copied = response();
+            if ( copied < 0 || copied > count ) {
+                IOException e = new IOException( "unexpected read count from helper for " + path + ": " + copied );
+                fail( e );
+                throw e;
+            }
+            bytes.position( start + (int)copied );
+            return (int)copied;
+        }
+        catch ( EOFException e ) {
+            fail( e );
+            throw e;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int b;
+        while ( (b = in.read()) != '\n' ) {
+            if ( b < 0 ) {
+                throw new EOFException( "helper for " + path + " exited unexpectedly" );
+            }
+            builder.append( (char)b );
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Sends the request line and returns the count from the response, or -1
+     * if the helper reported a failure.
+     */
+    private long request( String request ) throws IOException {
+        out.write( (request + "\n").getBytes( US_ASCII ) );
+        out.flush();
+        return response();
+    }
+
+    private long response() throws IOException {
+        String response = readLine();
+        if ( response.startsWith( "O " ) ) {
+            return Long.parseLong( response.substring( 2 ) );
+        }
+        if ( response.equals( "E" ) ) {
+            return -1;
+        }
+        IOException e = new IOException( "unexpected response from helper for " + path + ": " + response );
+        fail( e );
+        throw e;
+    }
+
+    synchronized long size() throws IOException {
+        ensureStarted();
+        long size = request( "z" );
+        if ( size < 0 ) {
+            throw new IOException( "size failed for " + path );
+        }
+        return size;
+    }
+
+    synchronized void truncate( long size ) throws IOException {
+        ensureStarted();
+        if ( request( "t " + size ) < 0 ) {
+            throw new IOException( "truncate failed for " + path );
+        }
+    }
+
+    synchronized int write( long position, ByteBuffer bytes ) throws IOException {
+        if ( !bytes.hasRemaining() ) {
+            return 0;
+        }
+        ensureStarted();
+        int count = Math.min( bytes.remaining(), UnixSshFileSystemProvider.MAX_BLOCK_SIZE );
+        out.write( ("w " + position + " " + count + "\n").getBytes( US_ASCII ) );
+        if ( bytes.hasArray() ) {
+            out.write( bytes.array(), bytes.arrayOffset() + bytes.position(), count );
+        }
+        else {
+            if ( writeBuffer == null || writeBuffer.length < count ) {
+                writeBuffer = new byte[count];
+            }
+            bytes.duplicate().get( writeBuffer, 0, count );
+            out.write( writeBuffer, 0, count );
+        }
+        out.flush();
+        if ( response() < 0 ) {
+            throw new IOException( "write failed for " + path );
+        }
+        bytes.position( bytes.position() + count );
+        return count;
+    }
+}
@@ -0,0 +1,290 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+import com.pastdev.jsch.command.CommandRunner.ExecuteResult;
+
+
+/**
+ * Runs the provider's commands over a small pool of long lived remote
+ * shells, rather than opening an exec channel, and starting a process and a
+ * shell, for each one. Each command is sent to a shell's stdin as a single
+ * line, run by <code>eval</code> in a subshell so that nothing it does, not
+ * even <code>exit</code> or a syntax error, can affect the shell or the
+ * commands after it, and with its stdin from <code>/dev/null</code> so that
+ * it cannot eat into the commands after it either. Its stdout comes back
+ * as is, followed by a token unique to the shell, its stderr, kept aside in
+ * a temporary file while it runs, the token again and its exit code, so
+ * that a single stream carries everything.
+ * <p>
+ * Commands are pipelined: a command is sent as soon as it is submitted,
+ * without waiting for those ahead of it on the same shell, and the replies,
+ * which come back in order, are read by whichever caller is waiting,
+ * handing each one to the caller it belongs to. Each command goes to the
+ * shell with the fewest commands in flight, and new shells are opened, up
+ * to the maximum, only while every shell is busy. A shell that fails fails
+ * every command in flight on it, and is replaced by the next command.
+ */
+public class UnixSshShellMultiplexer implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshShellMultiplexer.class );
+    static final int DEFAULT_MAXIMUM_SHELLS = 4;
+    private static final String ASCII_RECORD_SEPARATOR = Character.toString( (char)30 );
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private boolean closed;
+    private UnixSshFileSystem fileSystem;
+    private int maximumShells;
+    private List<Shell> shells = new ArrayList<Shell>();
+
+    UnixSshShellMultiplexer( UnixSshFileSystem fileSystem, int maximumShells ) {
+        if ( maximumShells < 1 ) {
+            throw new IllegalArgumentException( "maximum shells must be at least 1" );
+        }
+        this.fileSystem = fileSystem;
+        this.maximumShells = maximumShells;
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Shell> closing;
+        synchronized ( this ) {
+            closed = true;
+            closing = new ArrayList<Shell>( shells );
+            shells.clear();
+        }
+        for ( Shell shell : closing ) {
+            shell.close();
+        }
+    }
+
+    /**
+     * Runs <code>command</code> on one of the shells and returns its exit
+     * code, stdout and stderr, just as
+     * {@link com.pastdev.jsch.command.CommandRunner#execute(String)} would.
+     */
+    ExecuteResult execute( String command ) throws IOException {
+        return shell().execute( command );
+    }
+
+    public synchronized int getShellCount() {
+        return shells.size();
+    }
+
+    private static String singleQuote( String string ) {
+        return "'" + string.replace( "'", "'\\''" ) + "'";
+    }
+
+    /**
+     * Returns the shell with the fewest commands in flight, opening a new
+     * one if every shell is busy and there is room for another.
+     */
+    private synchronized Shell shell() throws IOException {
+        if ( closed ) {
+            throw new IOException( "shell multiplexer closed" );
+        }
+        Shell idlest = null;
+        Iterator<Shell> iterator = shells.iterator();
+        while ( iterator.hasNext() ) {
+            Shell shell = iterator.next();
+            if ( shell.isDead() ) {
+                iterator.remove();
+            }
+            else if ( idlest == null || shell.inFlight() < idlest.inFlight() ) {
+                idlest = shell;
+            }
+        }
+        if ( (idlest == null || idlest.inFlight() > 0) && shells.size() < maximumShells ) {
+            idlest = new Shell();
+            shells.add( idlest );
+            logger.debug( "opened shell {} of {} on {}", shells.size(), maximumShells, fileSystem.getUri() );
+        }
+        return idlest;
+    }
+
+    private static class Request {
+        // set by whichever thread reads the reply, or fails the shell
+        private volatile IOException failure;
+        private volatile ExecuteResult result;
+
+        private boolean isDone() {
+            return failure != null || result != null;
+        }
+    }
+
+    private class Shell {
+        private ChannelExecWrapper channel;
+        private boolean dead;
+        // in the order they were sent, which is the order of the replies
+        private Deque<Request> inFlight = new ArrayDeque<Request>();
+        private Reader reader;
+        private Object readLock = new Object();
+        private String token;
+        private Writer writer;
+        private Object writeLock = new Object();
+
+        private Shell() throws IOException {
+            token = ASCII_RECORD_SEPARATOR + UUID.randomUUID().toString() + ASCII_RECORD_SEPARATOR;
+            try {
+                channel = fileSystem.getCommandRunner().open( "sh" );
+                reader = new BufferedReader( new InputStreamReader( channel.getInputStream(), UTF8 ) );
+                writer = new OutputStreamWriter( channel.getOutputStream(), UTF8 );
+                writer.write( "exec 2> /dev/null; e=$(" + fileSystem.getCommand( "mktemp" ) + ") || exit 1; trap '"
+                        + fileSystem.getCommand( "rm" ) + " -f \"$e\"' EXIT\n" );
+                writer.flush();
+            }
+            catch ( JSchException e ) {
+                throw new IOException( e );
+            }
+        }
+
+        private void close() {
+            synchronized ( writeLock ) {
+                synchronized ( inFlight ) {
+                    dead = true;
+                }
+                try {
+                    // the shell exits once it has run everything sent so far
+                    writer.close();
+                }
+                catch ( IOException e ) {
+                    logger.debug( "unable to close shell on {}: {}", fileSystem.getUri(), e.getMessage() );
+                }
+            }
+            logger.debug( "shell on {} exited with {}", fileSystem.getUri(), channel.close() );
+        }
+
+        private ExecuteResult execute( String command ) throws IOException {
+            Request request = new Request();
+            synchronized ( writeLock ) {
+                synchronized ( inFlight ) {
+                    if ( dead ) {
+                        throw new IOException( "shell on " + fileSystem.getUri() + " closed" );
+                    }
+                    inFlight.add( request );
+                }
+                try {
+                    writer.write( "( eval " + singleQuote( command ) + " ) < /dev/null 2> \"$e\"; s=$?; printf '%s' "
+                            + singleQuote( token ) + "; test -s \"$e\" && " + fileSystem.getCommand( "cat" )
+                            + " \"$e\"; printf '%s%d\\n' " + singleQuote( token ) + " $s\n" );
+                    writer.flush();
+                }
+                catch ( IOException e ) {
+                    fail( e );
+                }
+            }
+
+            synchronized ( readLock ) {
+                while ( !request.isDone() ) {
+                    try {
+                        readReply();
+                    }
+                    catch ( IOException e ) {
+                        fail( e );
+                    }
+                }
+            }
+            if ( request.failure != null ) {
+                throw new IOException( "shell on " + fileSystem.getUri() + " failed running `" + command + "`",
+                        request.failure );
+            }
+            return request.result;
+        }
+
+        /**
+         * Marks the shell dead and fails every command in flight on it, as
+         * the stream is no longer in a known state.
+         */
+        private void fail( IOException e ) {
+            List<Request> failed;
+            synchronized ( inFlight ) {
+                if ( dead && inFlight.isEmpty() ) {
+                    return;
+                }
+                dead = true;
+                failed = new ArrayList<Request>( inFlight );
+                inFlight.clear();
+            }
+            logger.debug( "shell on {} failed with {} commands in flight: {}", fileSystem.getUri(),
+                    failed.size(), e.getMessage() );
+            for ( Request request : failed ) {
+                request.failure = e;
+            }
+            channel.close();
+        }
+
+        private int inFlight() {
+            synchronized ( inFlight ) {
+                return inFlight.size();
+            }
+        }
+
+        private boolean isDead() {
+            synchronized ( inFlight ) {
+                return dead;
+            }
+        }
+
+        /**
+         * Reads the reply to the oldest command in flight and hands it over.
+         */
+        private void readReply() throws IOException {
+            String stdout = readUntilToken();
+            String stderr = readUntilToken();
+            StringBuilder exitCode = new StringBuilder();
+            int c;
+            while ( (c = reader.read()) != '\n' ) {
+                if ( c < 0 ) {
+                    throw new EOFException( "shell exited" );
+                }
+                exitCode.append( (char)c );
+            }
+
+            Request request;
+            synchronized ( inFlight ) {
+                request = inFlight.poll();
+            }
+            if ( request == null ) {
+                throw new IOException( "reply with no command in flight" );
+            }
+            request.result = fileSystem.getCommandRunner().new ExecuteResult(
+                    Integer.parseInt( exitCode.toString() ), stdout, stderr );
+        }
+
+        private String readUntilToken() throws IOException {
+            StringBuilder builder = new StringBuilder();
+            char last = token.charAt( token.length() - 1 );
+            int c;
+            while ( (c = reader.read()) >= 0 ) {
+                builder.append( (char)c );
+                if ( c == last && builder.length() >= token.length()
+                        && builder.indexOf( token, builder.length() - token.length() ) >= 0 ) {
+                    builder.setLength( builder.length() - token.length() );
+                    return builder.toString();
+                }
+            }
+            throw new EOFException( "shell exited" );
+        }
+    }
+}
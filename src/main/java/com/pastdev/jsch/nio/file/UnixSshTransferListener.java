@@ -0,0 +1,39 @@
+package com.pastdev.jsch.nio.file;
+
+
+/**
+ * Receives progress from the parallel transfers started by
+ * {@link UnixSshFileSystemProvider#download(UnixSshPath, java.nio.file.Path, int, UnixSshTransferListener)}
+ * and
+ * {@link UnixSshFileSystemProvider#upload(java.nio.file.Path, UnixSshPath, int, boolean, UnixSshTransferListener)}.
+ * Called from the transfer threads, so implementations must be thread safe
+ * and should return quickly.
+ */
+public interface UnixSshTransferListener {
+    /**
+     * Called each time a block of bytes has been transferred. For uploads,
+     * bytes sent in a range that then fails are taken back out, so
+     * <code>transferred</code> can go down before a retry.
+     *
+     * @param transferred
+     *            The number of bytes transferred so far, across all ranges
+     * @param total
+     *            The total number of bytes to transfer
+     */
+    public void progress( long transferred, long total );
+
+    /**
+     * Called when a range failed and is about to be retried from where it
+     * left off.
+     *
+     * @param start
+     *            The offset of the first byte not yet transferred in the range
+     * @param end
+     *            The offset just past the end of the range
+     * @param attempt
+     *            The attempt that failed, starting at 1
+     * @param cause
+     *            Why it failed
+     */
+    public void retrying( long start, long end, int attempt, Exception cause );
+}
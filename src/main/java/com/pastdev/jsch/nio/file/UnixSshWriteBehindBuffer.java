@@ -0,0 +1,111 @@
+package com.pastdev.jsch.nio.file;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Write-behind for a {@link UnixSshSeekableByteChannel}. Writes that land
+ * inside, or right at the end of, the pending extent are merged into it so
+ * that many small writes turn into one remote write per
+ * <code>capacity</code> bytes. Anything else flushes the pending extent
+ * first. Writes of at least <code>capacity</code> bytes with nothing pending
+ * go straight to the remote file. The owner is responsible for calling
+ * {@link #flush()} before anything that must see the remote file as written
+ * (reads, truncates, close).
+ */
+class UnixSshWriteBehindBuffer {
+    private ByteBuffer buffer;
+    private UnixSshBufferPool bufferPool;
+    private int capacity;
+    private UnixSshSeekableByteChannel channel;
+    private int length;
+    private long start;
+
+    UnixSshWriteBehindBuffer( UnixSshSeekableByteChannel channel, int capacity ) {
+        if ( capacity <= 0 ) {
+            throw new IllegalArgumentException( "invalid write-behind size " + capacity );
+        }
+        this.channel = channel;
+        this.capacity = capacity;
+        this.bufferPool = channel.getPath().getFileSystem().getBufferPool();
+    }
+
+    void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            bufferPool.release( buffer );
+            buffer = null;
+        }
+    }
+
+    /**
+     * Writes the pending extent, if any, to the remote file. If that fails
+     * the extent is kept so that a later flush can try again.
+     */
+    void flush() throws IOException {
+        if ( buffer == null ) {
+            return;
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.limit( length );
+        data.position( 0 );
+        while ( data.hasRemaining() ) {
+            channel.writeRemote( start + data.position(), data );
+        }
+        bufferPool.release( buffer );
+        buffer = null;
+    }
+
+    private boolean isMergeable( long position ) {
+        return position >= start && position <= start + length;
+    }
+
+    /**
+     * Flushes if a write at <code>position</code> could not be merged into
+     * the pending extent.
+     */
+    void position( long position ) throws IOException {
+        if ( buffer != null && !isMergeable( position ) ) {
+            flush();
+        }
+    }
+
+    int write( long position, ByteBuffer bytes ) throws IOException {
+        int written = 0;
+        while ( bytes.hasRemaining() ) {
+            long offset = position + written;
+            if ( buffer != null && !isMergeable( offset ) ) {
+                flush();
+            }
+            if ( buffer == null ) {
+                if ( bytes.remaining() >= capacity ) {
+                    written += channel.writeRemote( offset, bytes );
+                    continue;
+                }
+                buffer = bufferPool.acquire( capacity );
+                start = offset;
+                length = 0;
+            }
+
+            int index = (int)(offset - start);
+            int count = Math.min( bytes.remaining(), capacity - index );
+            ByteBuffer source = bytes.duplicate();
+            source.limit( source.position() + count );
+            ByteBuffer target = buffer.duplicate();
+            target.position( index );
+            target.put( source );
+            bytes.position( bytes.position() + count );
+            length = Math.max( length, index + count );
+            written += count;
+
+            if ( length == capacity ) {
+                flush();
+            }
+        }
+        return written;
+    }
+}
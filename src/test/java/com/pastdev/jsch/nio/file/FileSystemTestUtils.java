@@ -58,6 +58,10 @@ public class FileSystemTestUtils {
     }
 
     public static void initializeFileSystem( String scheme, String prefix ) {
+        initializeFileSystem( scheme, prefix, null );
+    }
+
+    public static void initializeFileSystem( String scheme, String prefix, Map<String, ?> additionalEnvironment ) {
         InputStream inputStream = null;
         try {
             inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
@@ -99,6 +103,9 @@ public class FileSystemTestUtils {
                 environment.put( key.substring( environmentPrefix.length() ), properties.getProperty( key ) );
             }
         }
+        if ( additionalEnvironment != null ) {
+            environment.putAll( additionalEnvironment );
+        }
 
         DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory( username, hostname, port );
         try {
@@ -0,0 +1,314 @@
+package com.pastdev.jsch.nio.file;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.pastdev.jsch.IOUtils;
+
+
+public class UnixSshAttributeCacheTest extends FileSystemTestUtils {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshAttributeCacheTest.class );
+
+    @AfterClass
+    public static void afterClass() {
+        closeFileSystem();
+    }
+
+    @BeforeClass
+    public static void beforeClass() {
+        Map<String, Object> environment = new HashMap<String, Object>();
+        environment.put( "cache.attributes.ttl", 60L );
+        environment.put( "cache.attributes.missing.ttl", 60L );
+        environment.put( "cache.attributes.timeunit", "minutes" );
+        initializeFileSystem( UnixSshFileSystemProvider.SCHEME_SSH_UNIX, "ssh", environment );
+    }
+
+    @Test
+    public void testCache() {
+        String root = UUID.randomUUID().toString();
+        String filename = "attributes.txt";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+            IOUtils.writeFile( file, "hello" );
+
+            UnixSshAttributeCache attributeCache = ((UnixSshFileSystem)filePath.getFileSystem()).getAttributeCache();
+            long hits = attributeCache.getHits();
+            long misses = attributeCache.getMisses();
+            assertEquals( 5, Files.size( filePath ) );
+            assertTrue( Files.isRegularFile( filePath ) );
+            Files.getLastModifiedTime( filePath );
+            assertTrue( Files.isReadable( filePath ) );
+            assertTrue( Files.isWritable( filePath ) );
+            assertEquals( misses + 1, attributeCache.getMisses() );
+            assertEquals( hits + 4, attributeCache.getHits() );
+
+            // changes made behind our back go unnoticed until invalidated
+            IOUtils.writeFile( file, "hello world" );
+            assertEquals( 5, Files.size( filePath ) );
+            attributeCache.invalidate( filePath.getParent() );
+            assertEquals( 11, Files.size( filePath ) );
+
+            // while our own changes are seen right away
+            try (OutputStream outputStream = Files.newOutputStream( filePath )) {
+                outputStream.write( "hi".getBytes( "UTF-8" ) );
+            }
+            assertEquals( 2, Files.size( filePath ) );
+
+            FileTime lastModified = FileTime.fromMillis( 1000000000000L );
+            Files.setLastModifiedTime( filePath, lastModified );
+            assertEquals( lastModified, Files.getLastModifiedTime( filePath ) );
+
+            Files.delete( filePath );
+            try {
+                Files.size( filePath );
+                fail( "expected " + filePath + " to be gone" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testBulk() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, "bulk.txt" );
+        UnixSshPath rootPath = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root );
+        UnixSshPath filePath = rootPath.resolve( "bulk.txt" );
+        try {
+            rootDir.mkdirs();
+            IOUtils.writeFile( file, "hello" );
+
+            // attributes read in bulk are cached just like any others
+            UnixSshAttributeCache attributeCache = rootPath.getFileSystem().getAttributeCache();
+            rootPath.getFileSystem().provider().readAttributes( Arrays.asList( filePath ), PosixFileAttributes.class );
+            long hits = attributeCache.getHits();
+            long misses = attributeCache.getMisses();
+            assertEquals( 5, Files.size( filePath ) );
+            assertTrue( Files.isReadable( filePath ) );
+            assertEquals( misses, attributeCache.getMisses() );
+            assertEquals( hits + 2, attributeCache.getHits() );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testInvalidateFile() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, "written.txt" );
+        File sibling = new File( rootDir, "sibling.txt" );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( file.getName() );
+        Path siblingPath = filePath.resolveSibling( sibling.getName() );
+        try {
+            rootDir.mkdirs();
+            IOUtils.writeFile( file, "hello" );
+            IOUtils.writeFile( sibling, "hello" );
+
+            UnixSshAttributeCache attributeCache = ((UnixSshFileSystem)filePath.getFileSystem()).getAttributeCache();
+            assertTrue( Files.isDirectory( filePath.getParent() ) );
+            assertEquals( 5, Files.size( siblingPath ) );
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath, StandardOpenOption.WRITE )) {
+                assertEquals( 5, Files.size( filePath ) );
+
+                // a write forgets the file alone
+                long hits = attributeCache.getHits();
+                long misses = attributeCache.getMisses();
+                byteChannel.position( 5 ).write( ByteBuffer.wrap( " world".getBytes( "UTF-8" ) ) );
+                assertEquals( 11, Files.size( filePath ) );
+                assertEquals( misses + 1, attributeCache.getMisses() );
+                assertEquals( 5, Files.size( siblingPath ) );
+                assertTrue( Files.isDirectory( filePath.getParent() ) );
+                assertEquals( hits + 2, attributeCache.getHits() );
+
+                byteChannel.truncate( 2 );
+                assertEquals( 2, Files.size( filePath ) );
+                assertEquals( misses + 2, attributeCache.getMisses() );
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, sibling, rootDir );
+        }
+    }
+
+    @Test
+    public void testListedAttributes() {
+        String root = UUID.randomUUID().toString();
+        String filename = "listed.txt";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path rootPath = FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            rootDir.mkdirs();
+            IOUtils.writeFile( file, "hello" );
+
+            // entries answer from the listing...
+            Path filePath = listed( rootPath, filename );
+            IOUtils.writeFile( file, "hello world" );
+            assertEquals( 5, Files.size( filePath ) );
+            assertEquals( 11, Files.size( rootPath.resolve( filename ) ) );
+
+            // ...until changed through the provider...
+            Files.setLastModifiedTime( filePath, FileTime.fromMillis( 1000000000000L ) );
+            assertEquals( 11, Files.size( filePath ) );
+
+            // ...through any path equal to it
+            filePath = listed( rootPath, filename );
+            assertEquals( 11, Files.size( filePath ) );
+            Files.write( rootPath.resolve( filename ).toAbsolutePath(), "hello".getBytes( "UTF-8" ) );
+            assertEquals( 5, Files.size( filePath ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testListedAttributesBounds() throws InterruptedException {
+        UnixSshFileSystem fileSystem = (UnixSshFileSystem)FileSystems.getFileSystem( uri );
+        UnixSshListedAttributes listedAttributes = new UnixSshListedAttributes( 100 );
+        UnixSshPath path = fileSystem.getPath( "/listed/entry" );
+
+        // too old
+        long listed = System.nanoTime();
+        assertTrue( listedAttributes.isValid( path, listed, System.nanoTime() ) );
+        Thread.sleep( 200 );
+        assertFalse( listedAttributes.isValid( path, listed, listed ) );
+
+        // changed since the listing started
+        long read = System.nanoTime();
+        listedAttributes.changed( fileSystem.getPath( "/listed" ) );
+        assertFalse( listedAttributes.isValid( path, listed, read ) );
+
+        // pushed out changes are forgotten, listings started before them are
+        // not trusted any more
+        listedAttributes = new UnixSshListedAttributes( 60000 );
+        listed = System.nanoTime();
+        for ( int i = 0; i <= UnixSshListedAttributes.MAXIMUM_CHANGES; i++ ) {
+            listedAttributes.changedEntry( fileSystem.getPath( "/changed/" + i ) );
+        }
+        assertFalse( listedAttributes.isValid( path, listed, System.nanoTime() ) );
+        long later = System.nanoTime();
+        assertTrue( listedAttributes.isValid( path, later, later ) );
+    }
+
+    private static Path listed( Path directory, String name ) throws IOException {
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream( directory )) {
+            for ( Path directoryEntry : directoryStream ) {
+                if ( directoryEntry.getFileName().toString().equals( name ) ) {
+                    return directoryEntry;
+                }
+            }
+        }
+        throw new NoSuchFileException( directory.resolve( name ).toString() );
+    }
+
+    @Test
+    public void testMissing() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, "missing.txt" );
+        File sibling = new File( rootDir, "sibling.txt" );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( "missing.txt" );
+        Path siblingPath = filePath.resolveSibling( "sibling.txt" );
+        try {
+            rootDir.mkdirs();
+
+            UnixSshAttributeCache attributeCache = ((UnixSshFileSystem)filePath.getFileSystem()).getAttributeCache();
+            long missingHits = attributeCache.getMissingHits();
+            assertFalse( Files.exists( filePath ) );
+            assertFalse( Files.exists( filePath ) );
+            try {
+                Files.size( filePath );
+                fail( "expected " + filePath + " to be missing" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+            assertEquals( missingHits + 2, attributeCache.getMissingHits() );
+
+            // remembered as missing even once created behind our back...
+            assertFalse( Files.exists( siblingPath ) );
+            IOUtils.writeFile( sibling, "hello" );
+            assertFalse( Files.exists( siblingPath ) );
+
+            // ...until something is created next to it through the provider
+            Files.createFile( filePath );
+            assertTrue( Files.exists( filePath ) );
+            assertTrue( Files.exists( siblingPath ) );
+            assertEquals( 5, Files.size( siblingPath ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, sibling, rootDir );
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.pastdev.jsch.nio.file;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.pastdev.jsch.IOUtils;
+
+
+public class UnixSshBlockCacheTest extends FileSystemTestUtils {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshBlockCacheTest.class );
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BUDGET = 64 * BLOCK_SIZE;
+
+    @AfterClass
+    public static void afterClass() {
+        closeFileSystem();
+    }
+
+    @BeforeClass
+    public static void beforeClass() {
+        Map<String, Object> environment = new HashMap<String, Object>();
+        environment.put( "cache.blocks", true );
+        environment.put( "cache.blocks.blocksize", (long)BLOCK_SIZE );
+        environment.put( "cache.blocks.budget", (long)BUDGET );
+        initializeFileSystem( UnixSshFileSystemProvider.SCHEME_SSH_UNIX, "ssh", environment );
+    }
+
+    private static byte[] randomBytes( int size ) {
+        byte[] bytes = new byte[size];
+        new Random( size ).nextBytes( bytes );
+        return bytes;
+    }
+
+    @Test
+    public void testSeekableByteChannel() {
+        String root = UUID.randomUUID().toString();
+        String filename = "blockcache.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = randomBytes( 10 * BLOCK_SIZE + 100 );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+
+            UnixSshBlockCache blockCache = ((UnixSshFileSystem)filePath.getFileSystem()).getBlockCache();
+            ByteBuffer buffer = ByteBuffer.allocate( 3 * BLOCK_SIZE );
+            for ( int i = 0; i < 2; i++ ) {
+                long hits = blockCache.getHits();
+                try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath, StandardOpenOption.READ )) {
+                    buffer.clear();
+                    assertEquals( buffer.capacity(), byteChannel.position( BLOCK_SIZE + 10 ).read( buffer ) );
+                    assertArrayEquals( Arrays.copyOfRange( expected, BLOCK_SIZE + 10, BLOCK_SIZE + 10 + buffer.capacity() ),
+                            buffer.array() );
+
+                    // the tail block is short
+                    buffer.clear();
+                    assertEquals( 100, byteChannel.position( 10 * BLOCK_SIZE ).read( buffer ) );
+                    assertArrayEquals( Arrays.copyOfRange( expected, 10 * BLOCK_SIZE, expected.length ),
+                            Arrays.copyOf( buffer.array(), 100 ) );
+                }
+                if ( i == 1 ) {
+                    // second time around everything is served from the cache
+                    assertEquals( 5, blockCache.getHits() - hits );
+                }
+            }
+
+            // writing through a channel invalidates
+            byte[] replacement = randomBytes( 10 );
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath,
+                    EnumSet.of( StandardOpenOption.READ, StandardOpenOption.WRITE ) )) {
+                byteChannel.position( BLOCK_SIZE + 10 ).write( ByteBuffer.wrap( replacement ) );
+                System.arraycopy( replacement, 0, expected, BLOCK_SIZE + 10, replacement.length );
+
+                buffer.clear();
+                assertEquals( buffer.capacity(), byteChannel.position( BLOCK_SIZE + 10 ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, BLOCK_SIZE + 10, BLOCK_SIZE + 10 + buffer.capacity() ),
+                        buffer.array() );
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testInputStream() {
+        String root = UUID.randomUUID().toString();
+        String filename = "blockcachestream.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = randomBytes( 20 * BLOCK_SIZE + 7 );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+
+            UnixSshBlockCache blockCache = ((UnixSshFileSystem)filePath.getFileSystem()).getBlockCache();
+            for ( int i = 0; i < 2; i++ ) {
+                long hits = blockCache.getHits();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (InputStream inputStream = Files.newInputStream( filePath )) {
+                    out.write( inputStream.read() );
+                    assertEquals( 5 * BLOCK_SIZE, inputStream.skip( 5 * BLOCK_SIZE ) );
+                    out.write( expected, 1, 5 * BLOCK_SIZE );
+                    byte[] buffer = new byte[1000];
+                    int read;
+                    while ( (read = inputStream.read( buffer )) >= 0 ) {
+                        out.write( buffer, 0, read );
+                    }
+                }
+                assertArrayEquals( expected, out.toByteArray() );
+                if ( i == 1 ) {
+                    // the first pass teed every block it read in full
+                    assertTrue( blockCache.getHits() - hits >= 15 );
+                }
+            }
+            assertTrue( blockCache.getBytes() <= BUDGET );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.pastdev.jsch.nio.file;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.pastdev.jsch.IOUtils;
+
+
+public class UnixSshDiskCacheTest extends FileSystemTestUtils {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshDiskCacheTest.class );
+    private static final long MAXIMUM_SIZE = 300 * 1024;
+    private static File cacheDir;
+
+    @AfterClass
+    public static void afterClass() {
+        closeFileSystem();
+        if ( cacheDir != null ) {
+            File[] files = cacheDir.listFiles();
+            if ( files != null ) {
+                IOUtils.deleteFiles( files );
+            }
+            IOUtils.deleteFiles( cacheDir );
+        }
+    }
+
+    @BeforeClass
+    public static void beforeClass() {
+        try {
+            cacheDir = Files.createTempDirectory( "jsch-nio-cache" ).toFile();
+        }
+        catch ( IOException e ) {
+            throw new RuntimeException( e );
+        }
+        Map<String, Object> environment = new HashMap<String, Object>();
+        environment.put( "cache.dir", cacheDir.getAbsolutePath() );
+        environment.put( "cache.dir.size", MAXIMUM_SIZE );
+        initializeFileSystem( UnixSshFileSystemProvider.SCHEME_SSH_UNIX, "ssh", environment );
+    }
+
+    private static long cacheDirSize() throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream( cacheDir.toPath() )) {
+            for ( Path entry : stream ) {
+                size += Files.size( entry );
+            }
+        }
+        return size;
+    }
+
+    private static byte[] randomBytes( int size ) {
+        byte[] bytes = new byte[size];
+        new Random( size ).nextBytes( bytes );
+        return bytes;
+    }
+
+    private static byte[] readAll( Path path ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream inputStream = path.getFileSystem().provider().newInputStream( path )) {
+            IOUtils.copy( inputStream, out );
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCache() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, "cached.bin" );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( "cached.bin" );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = randomBytes( 100000 );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+
+            UnixSshDiskCache diskCache = ((UnixSshFileSystem)filePath.getFileSystem()).getDiskCache();
+            long hits = diskCache.getHits();
+            long misses = diskCache.getMisses();
+            assertArrayEquals( expected, readAll( filePath ) );
+            assertEquals( misses + 1, diskCache.getMisses() );
+            assertArrayEquals( expected, readAll( filePath ) );
+            assertEquals( hits + 1, diskCache.getHits() );
+
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath, StandardOpenOption.READ )) {
+                ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+                assertEquals( 1000, byteChannel.position( 5000 ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, 5000, 6000 ), buffer.array() );
+            }
+            assertEquals( hits + 2, diskCache.getHits() );
+
+            // a changed file is a new entry, and the old one goes away
+            expected = randomBytes( 100001 );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+            assertArrayEquals( expected, readAll( filePath ) );
+            assertEquals( misses + 2, diskCache.getMisses() );
+            assertTrue( cacheDirSize() <= expected.length );
+
+            // entries are validated by a remote stat, not attributes from a
+            // listing
+            Path listedPath = null;
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream( filePath.getParent() )) {
+                for ( Path directoryEntry : directoryStream ) {
+                    listedPath = directoryEntry;
+                }
+            }
+            expected = randomBytes( 100001 );
+            expected[0]++;
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+            assertTrue( file.setLastModified( file.lastModified() + 10000 ) );
+            assertArrayEquals( expected, readAll( listedPath ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testChannelFill() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, "footer.bin" );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( "footer.bin" );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = randomBytes( 200000 );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+
+            UnixSshDiskCache diskCache = ((UnixSshFileSystem)filePath.getFileSystem()).getDiskCache();
+            long hits = diskCache.getHits();
+            long size = cacheDirSize();
+
+            // reading just the footer downloads nothing
+            ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath, StandardOpenOption.READ )) {
+                byteChannel.position( expected.length - 1000 ).read( buffer );
+                buffer.clear();
+                byteChannel.position( 0 ).read( buffer );
+                buffer.clear();
+                byteChannel.read( buffer );
+            }
+            assertEquals( size, cacheDirSize() );
+
+            // reading it through from the start does
+            buffer.clear();
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath, StandardOpenOption.READ )) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                while ( byteChannel.read( buffer ) >= 0 ) {
+                    out.write( buffer.array(), 0, buffer.position() );
+                    buffer.clear();
+                }
+                assertArrayEquals( expected, out.toByteArray() );
+            }
+            assertArrayEquals( expected, readAll( filePath ) );
+            assertEquals( hits + 1, diskCache.getHits() );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File[] files = new File[4];
+        try {
+            rootDir.mkdirs();
+            for ( int i = 0; i < files.length; i++ ) {
+                files[i] = new File( rootDir, "evict" + i + ".bin" );
+                byte[] expected = randomBytes( 100000 + i );
+                try (OutputStream outputStream = new FileOutputStream( files[i] )) {
+                    outputStream.write( expected );
+                }
+                Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( files[i].getName() );
+                assertArrayEquals( expected, readAll( filePath ) );
+            }
+            assertTrue( cacheDirSize() <= MAXIMUM_SIZE );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootDir, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootDir + ": " + e.getMessage() );
+        }
+        finally {
+            for ( File file : files ) {
+                if ( file != null ) {
+                    IOUtils.deleteFiles( file );
+                }
+            }
+            IOUtils.deleteFiles( rootDir );
+        }
+    }
+}
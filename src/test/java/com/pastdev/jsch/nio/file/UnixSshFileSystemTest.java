@@ -2,43 +2,65 @@ package com.pastdev.jsch.nio.file;
 
 
 import static com.pastdev.jsch.nio.file.UnixSshFileSystemProvider.PATH_SEPARATOR;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.DirectoryStream.Filter;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -62,6 +84,278 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
         initializeFileSystem( UnixSshFileSystemProvider.SCHEME_SSH_UNIX );
     }
 
+    @Test
+    public void testCheckAccess() {
+        String root = UUID.randomUUID().toString();
+        String filename = "access.txt";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+            IOUtils.writeFile( file, expected );
+            Files.setPosixFilePermissions( file.toPath(), PosixFilePermissions.fromString( "rw-r-----" ) );
+
+            filePath.getFileSystem().provider().checkAccess( filePath, AccessMode.READ, AccessMode.WRITE );
+            assertTrue( Files.isReadable( filePath ) );
+            assertFalse( Files.isExecutable( filePath ) );
+
+            Files.setPosixFilePermissions( file.toPath(), PosixFilePermissions.fromString( "rwxr-x---" ) );
+            assertTrue( Files.isExecutable( filePath ) );
+
+            try {
+                filePath.getFileSystem().provider().checkAccess( filePath.resolveSibling( "missing.txt" ) );
+                fail( "expected missing.txt to be missing" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+            assertFalse( Files.isReadable( filePath.resolveSibling( "missing.txt" ) ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testCopyAndMove() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File source = new File( rootDir, "source.txt" );
+        File copy = new File( rootDir, "copy.txt" );
+        File moved = new File( rootDir, "moved.txt" );
+        File directory = new File( rootDir, "directory" );
+        File occupant = new File( directory, "occupant.txt" );
+        Path rootPath = FileSystems.getFileSystem( uri ).getPath( root );
+        Path sourcePath = rootPath.resolve( "source.txt" );
+        Path copyPath = rootPath.resolve( "copy.txt" );
+        Path movedPath = rootPath.resolve( "moved.txt" );
+        try {
+            directory.mkdirs();
+            IOUtils.writeFile( source, "hello" );
+            IOUtils.writeFile( occupant, "occupied" );
+
+            Files.copy( sourcePath, copyPath );
+            assertEquals( "hello", IOUtils.readFile( copy ) );
+            try {
+                Files.copy( sourcePath, copyPath );
+                fail( "expected " + copyPath + " to exist already" );
+            }
+            catch ( FileAlreadyExistsException e ) {
+                // expected
+            }
+            IOUtils.writeFile( source, "hello world" );
+            Files.copy( sourcePath, copyPath, StandardCopyOption.REPLACE_EXISTING );
+            assertEquals( "hello world", IOUtils.readFile( copy ) );
+
+            // the same file, however it is named, is left alone
+            Files.copy( sourcePath, rootPath.resolve( "directory/../source.txt" ) );
+            assertEquals( "hello world", IOUtils.readFile( source ) );
+
+            try {
+                Files.move( copyPath, rootPath.resolve( "directory" ), StandardCopyOption.REPLACE_EXISTING );
+                fail( "expected " + directory + " not to be empty" );
+            }
+            catch ( DirectoryNotEmptyException e ) {
+                // expected
+            }
+
+            Files.move( copyPath, movedPath, StandardCopyOption.ATOMIC_MOVE );
+            assertFalse( copy.exists() );
+            assertEquals( "hello world", IOUtils.readFile( moved ) );
+            try {
+                Files.move( copyPath, movedPath, StandardCopyOption.REPLACE_EXISTING );
+                fail( "expected " + copyPath + " to be gone" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( source, copy, moved, occupant, directory, rootDir );
+        }
+    }
+
+    @Test
+    public void testCopyAndMoveRecursively() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File sourceDir = new File( rootDir, "source" );
+        File deepDir = new File( sourceDir, "sub/deep" );
+        File emptyDir = new File( sourceDir, "empty" );
+        File a = new File( sourceDir, "a.txt" );
+        File c = new File( deepDir, "c.txt" );
+        Path rootPath = FileSystems.getFileSystem( uri ).getPath( root );
+        Path sourcePath = rootPath.resolve( "source" );
+        Path copyPath = rootPath.resolve( "copy" );
+        Path movedPath = rootPath.resolve( "moved" );
+        final List<Path> copied = new ArrayList<Path>();
+        final List<Path> failed = new ArrayList<Path>();
+        UnixSshCopyListener listener = new UnixSshCopyListener() {
+            @Override
+            public void copied( Path source, Path target ) {
+                copied.add( target );
+            }
+
+            @Override
+            public void failed( Path source, Path target, IOException cause ) {
+                failed.add( target );
+            }
+        };
+        try {
+            deepDir.mkdirs();
+            emptyDir.mkdirs();
+            IOUtils.writeFile( a, "a" );
+            IOUtils.writeFile( c, "c" );
+            assertTrue( a.setLastModified( 1000000000000L ) );
+
+            UnixSshFileSystemProvider provider = (UnixSshFileSystemProvider)rootPath.getFileSystem().provider();
+            provider.copyRecursively( sourcePath, copyPath, listener, StandardCopyOption.COPY_ATTRIBUTES );
+            assertEquals( 6, copied.size() );
+            assertTrue( failed.isEmpty() );
+            assertTrue( copied.contains( copyPath.resolve( "sub/deep/c.txt" ) ) );
+            assertEquals( "c", IOUtils.readFile( new File( rootDir, "copy/sub/deep/c.txt" ) ) );
+            assertTrue( new File( rootDir, "copy/empty" ).isDirectory() );
+            assertEquals( 1000000000000L, new File( rootDir, "copy/a.txt" ).lastModified() );
+
+            try {
+                provider.copyRecursively( sourcePath, copyPath );
+                fail( "expected " + copyPath + " to exist already" );
+            }
+            catch ( FileAlreadyExistsException e ) {
+                // expected
+            }
+
+            // a directory in the way of a file fails that entry alone
+            copied.clear();
+            new File( rootDir, "copy/a.txt" ).delete();
+            new File( rootDir, "copy/a.txt" ).mkdir();
+            IOUtils.writeFile( c, "c2" );
+            try {
+                provider.copyRecursively( sourcePath, copyPath, listener, StandardCopyOption.REPLACE_EXISTING );
+                fail( "expected " + copyPath.resolve( "a.txt" ) + " to fail" );
+            }
+            catch ( IOException e ) {
+                // expected
+            }
+            assertEquals( Arrays.asList( copyPath.resolve( "a.txt" ) ), failed );
+            assertEquals( 5, copied.size() );
+            assertEquals( "c2", IOUtils.readFile( new File( rootDir, "copy/sub/deep/c.txt" ) ) );
+
+            copied.clear();
+            failed.clear();
+            provider.moveRecursively( sourcePath, movedPath, listener );
+            assertFalse( sourceDir.exists() );
+            assertEquals( "c2", IOUtils.readFile( new File( rootDir, "moved/sub/deep/c.txt" ) ) );
+            assertTrue( failed.isEmpty() );
+            assertEquals( Arrays.asList( movedPath ), copied );
+
+            // merging into an existing tree copies, and only then removes
+            try {
+                provider.moveRecursively( movedPath, copyPath, StandardCopyOption.REPLACE_EXISTING );
+                fail( "expected " + copyPath.resolve( "a.txt" ) + " to fail" );
+            }
+            catch ( IOException e ) {
+                // expected
+            }
+            assertTrue( new File( rootDir, "moved/a.txt" ).isFile() );
+            new File( rootDir, "copy/a.txt" ).delete();
+            provider.moveRecursively( movedPath, copyPath, StandardCopyOption.REPLACE_EXISTING );
+            assertFalse( new File( rootDir, "moved" ).exists() );
+            assertEquals( "a", IOUtils.readFile( new File( rootDir, "copy/a.txt" ) ) );
+
+            try {
+                provider.moveRecursively( sourcePath, movedPath );
+                fail( "expected " + sourcePath + " to be gone" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            List<File> files = new ArrayList<File>();
+            for ( String tree : new String[] { "source", "copy", "moved" } ) {
+                for ( String entry : new String[] { "a.txt", "sub/deep/c.txt", "sub/deep", "sub", "empty", "" } ) {
+                    files.add( new File( rootDir, tree + "/" + entry ) );
+                }
+            }
+            files.add( rootDir );
+            IOUtils.deleteFiles( files.toArray( new File[files.size()] ) );
+        }
+    }
+
+    @Test
+    public void testCreateDirectories() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File leaf = new File( rootDir, "a/b/c" );
+        File file = new File( rootDir, "file.txt" );
+        Path rootPath = FileSystems.getFileSystem( uri ).getPath( root );
+        Path leafPath = rootPath.resolve( "a/b/c" );
+        try {
+            rootDir.mkdirs();
+            IOUtils.writeFile( file, "hello" );
+
+            UnixSshFileSystemProvider provider = (UnixSshFileSystemProvider)rootPath.getFileSystem().provider();
+            Set<PosixFilePermission> permissions = PosixFilePermissions.fromString( "rwxr-x---" );
+            assertFalse( Files.exists( leafPath ) );
+            provider.createDirectories( leafPath, PosixFilePermissions.asFileAttribute( permissions ) );
+            assertTrue( leaf.isDirectory() );
+            assertTrue( Files.isDirectory( leafPath ) );
+            assertEquals( permissions, Files.getPosixFilePermissions( leafPath ) );
+            assertEquals( permissions, Files.getPosixFilePermissions( rootPath.resolve( "a" ) ) );
+
+            // already there is fine, unless it is not a directory
+            provider.createDirectories( leafPath );
+            try {
+                provider.createDirectories( rootPath.resolve( "file.txt" ) );
+                fail( "expected " + file + " not to be a directory" );
+            }
+            catch ( FileAlreadyExistsException e ) {
+                // expected
+            }
+
+            Path directoryPath = rootPath.resolve( "a/b/d" );
+            provider.createDirectory( directoryPath, PosixFilePermissions.asFileAttribute( permissions ) );
+            assertEquals( permissions, Files.getPosixFilePermissions( directoryPath ) );
+            try {
+                provider.createDirectory( directoryPath );
+                fail( "expected " + directoryPath + " to exist already" );
+            }
+            catch ( FileAlreadyExistsException e ) {
+                // expected
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( leaf, new File( rootDir, "a/b/d" ), new File( rootDir, "a/b" ),
+                    new File( rootDir, "a" ), file, rootDir );
+        }
+    }
+
     @Test
     public void testCreateDirectory() {
         String root = UUID.randomUUID().toString();
@@ -90,6 +384,150 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
         }
     }
 
+    @Test
+    public void testCreateFile() {
+        String root = UUID.randomUUID().toString();
+        String filename = "created.txt";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path path = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+
+            Set<PosixFilePermission> permissions = PosixFilePermissions.fromString( "rw-r-----" );
+            Files.createFile( path, PosixFilePermissions.asFileAttribute( permissions ) );
+            assertTrue( file.isFile() );
+            assertEquals( 0, file.length() );
+            assertEquals( permissions, Files.getPosixFilePermissions( path ) );
+
+            try {
+                Files.createFile( path );
+                fail( "expected " + path + " to exist already" );
+            }
+            catch ( FileAlreadyExistsException e ) {
+                // expected
+            }
+            try {
+                Files.createFile( path.resolveSibling( "missing" ).resolve( filename ) );
+                fail( "expected the parent of " + path + " to be missing" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", path, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + path + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testDelete() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, "file.txt" );
+        Path rootPath = FileSystems.getFileSystem( uri ).getPath( root );
+        Path filePath = rootPath.resolve( "file.txt" );
+        try {
+            rootDir.mkdirs();
+            IOUtils.writeFile( file, "hello" );
+
+            try {
+                Files.delete( rootPath );
+                fail( "expected " + rootPath + " not to be empty" );
+            }
+            catch ( DirectoryNotEmptyException e ) {
+                // expected
+            }
+            Files.delete( filePath );
+            assertFalse( file.exists() );
+            try {
+                Files.delete( filePath );
+                fail( "expected " + filePath + " to be gone" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+            Files.delete( rootPath );
+            assertFalse( rootDir.exists() );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testDeleteRecursively() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File treeDir = new File( rootDir, "tree/sub/deep" );
+        File[] files = new File[] {
+                new File( rootDir, "tree/a.txt" ),
+                new File( treeDir, "b.txt" ) };
+        Path rootPath = FileSystems.getFileSystem( uri ).getPath( root );
+        Path treePath = rootPath.resolve( "tree" );
+        List<File> batchFiles = new ArrayList<File>();
+        try {
+            treeDir.mkdirs();
+            for ( File file : files ) {
+                IOUtils.writeFile( file, "hello" );
+            }
+
+            UnixSshFileSystemProvider provider = (UnixSshFileSystemProvider)rootPath.getFileSystem().provider();
+            assertTrue( Files.exists( treePath ) );
+            provider.deleteRecursively( treePath );
+            assertFalse( new File( rootDir, "tree" ).exists() );
+            assertFalse( Files.exists( treePath ) );
+            try {
+                provider.deleteRecursively( treePath );
+                fail( "expected " + treePath + " to be gone" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+
+            // enough long names to take several batches, missing ones ignored
+            char[] padding = new char[200];
+            Arrays.fill( padding, 'x' );
+            List<UnixSshPath> paths = new ArrayList<UnixSshPath>();
+            for ( int i = 0; i < 400; i++ ) {
+                String name = i + new String( padding );
+                File file = new File( rootDir, name );
+                batchFiles.add( file );
+                if ( i % 10 != 0 ) {
+                    IOUtils.writeFile( file, "hello" );
+                }
+                paths.add( (UnixSshPath)rootPath.resolve( name ) );
+            }
+            treeDir.mkdirs();
+            paths.add( (UnixSshPath)treePath );
+            provider.deleteRecursively( paths );
+            assertEquals( 0, rootDir.list().length );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( batchFiles.toArray( new File[batchFiles.size()] ) );
+            IOUtils.deleteFiles( files );
+            IOUtils.deleteFiles( treeDir, treeDir.getParentFile(), new File( rootDir, "tree" ), rootDir );
+        }
+    }
+
     @Test
     public void testDirectoryStreamEmptyDir() throws IOException {
         final String root = UUID.randomUUID().toString();
@@ -120,6 +558,49 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
         }
     }
 
+    @Test
+    public void testDownload() {
+        String root = UUID.randomUUID().toString();
+        String filename = "download.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        File localFile = new File( rootDir, "local.bin" );
+        UnixSshPath filePath = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+
+            byte[] contents = new byte[(int)(5 * UnixSshParallelTransfer.MINIMUM_RANGE_SIZE + 123)];
+            new Random( 4 ).nextBytes( contents );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( contents );
+            }
+
+            final AtomicLong lastProgress = new AtomicLong();
+            filePath.getFileSystem().provider().download( filePath, localFile.toPath(), 3, new UnixSshTransferListener() {
+                @Override
+                public void progress( long transferred, long total ) {
+                    long last;
+                    while ( (last = lastProgress.get()) < transferred && !lastProgress.compareAndSet( last, transferred ) );
+                }
+
+                @Override
+                public void retrying( long start, long end, int attempt, Exception cause ) {
+                }
+            } );
+            assertEquals( contents.length, lastProgress.get() );
+            assertArrayEquals( contents, Files.readAllBytes( localFile.toPath() ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, localFile, rootDir );
+        }
+    }
+
     @Test
     public void testExists() {
         Path defaultPath = Paths.get( uri );
@@ -211,14 +692,273 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
             fail( "could not obtain directory stream from " + rootPath + ": " + e.getMessage() );
         }
         finally {
-            IOUtils.deleteFiles( file1, file1, file3, file4, dotfile, rootDir );
+            IOUtils.deleteFiles( file1, file1, file3, file4, dotfile, rootDir );
+        }
+    }
+
+    @Test
+    public void testNewDirectoryStreamAttributes() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, "listed.txt" );
+        File subDir = new File( rootDir, "listed" );
+        Path rootPath = FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            rootDir.mkdirs();
+            subDir.mkdirs();
+            IOUtils.writeFile( file, "hello" );
+
+            Path filePath = null;
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream( rootPath )) {
+                for ( Path directoryEntry : directoryStream ) {
+                    if ( directoryEntry.getFileName().toString().equals( "listed.txt" ) ) {
+                        filePath = directoryEntry;
+                        assertTrue( Files.isRegularFile( directoryEntry ) );
+                    }
+                    else {
+                        assertTrue( Files.isDirectory( directoryEntry ) );
+                    }
+                }
+            }
+            assertEquals( rootPath.resolve( "listed.txt" ), filePath );
+
+            // without an attribute cache, entries do not answer from the
+            // listing
+            IOUtils.writeFile( file, "hello world" );
+            assertEquals( 11, Files.size( filePath ) );
+
+            try {
+                Files.newDirectoryStream( filePath );
+                fail( "expected " + filePath + " not to be a directory" );
+            }
+            catch ( NotDirectoryException e ) {
+                // expected
+            }
+            try {
+                Files.newDirectoryStream( rootPath.resolve( "missing" ) );
+                fail( "expected " + rootPath.resolve( "missing" ) + " to be missing" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, subDir, rootDir );
+        }
+    }
+
+    private static Path listed( Path directory, String name ) throws IOException {
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream( directory )) {
+            for ( Path directoryEntry : directoryStream ) {
+                if ( directoryEntry.getFileName().toString().equals( name ) ) {
+                    return directoryEntry;
+                }
+            }
+        }
+        throw new NoSuchFileException( directory.resolve( name ).toString() );
+    }
+
+    @Test
+    public void testNewDirectoryStreamClose() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File[] files = new File[2000];
+        Path rootPath = FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            rootDir.mkdirs();
+            for ( int i = 0; i < files.length; i++ ) {
+                files[i] = new File( rootDir, "entry" + i );
+                files[i].createNewFile();
+            }
+
+            int count = 0;
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream( rootPath )) {
+                for ( Path directoryEntry : directoryStream ) {
+                    assertTrue( directoryEntry.getFileName().toString().startsWith( "entry" ) );
+                    count++;
+                }
+            }
+            assertEquals( files.length, count );
+
+            // walking away early abandons the rest of the listing
+            DirectoryStream<Path> directoryStream = Files.newDirectoryStream( rootPath );
+            Iterator<Path> iterator = directoryStream.iterator();
+            assertTrue( iterator.hasNext() );
+            iterator.next();
+            directoryStream.close();
+            assertFalse( iterator.hasNext() );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            for ( File file : files ) {
+                if ( file != null ) {
+                    IOUtils.deleteFiles( file );
+                }
+            }
+            IOUtils.deleteFiles( rootDir );
+        }
+    }
+
+    @Test
+    public void testNewDirectoryStreamRemovedEntries() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        // enough for find to stat them in several batches
+        File[] files = new File[20000];
+        Path rootPath = FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            rootDir.mkdirs();
+            Set<String> names = new HashSet<String>();
+            for ( int i = 0; i < files.length; i++ ) {
+                files[i] = new File( rootDir, "entry" + i + "-" + UUID.randomUUID().toString() );
+                files[i].createNewFile();
+                names.add( files[i].getName() );
+            }
+
+            int count = 0;
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream( rootPath )) {
+                Iterator<Path> iterator = directoryStream.iterator();
+                assertTrue( iterator.hasNext() );
+                iterator.next();
+                count++;
+
+                // gone before the rest of them could be stat'ed
+                for ( File file : files ) {
+                    IOUtils.deleteFiles( file );
+                }
+                while ( iterator.hasNext() ) {
+                    assertTrue( names.contains( iterator.next().getFileName().toString() ) );
+                    count++;
+                }
+            }
+            assertTrue( count < files.length );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            for ( File file : files ) {
+                if ( file != null ) {
+                    IOUtils.deleteFiles( file );
+                }
+            }
+            IOUtils.deleteFiles( rootDir );
+        }
+    }
+
+    @Test
+    public void testNewDirectoryStreamGlob() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File[] files = new File[] {
+                new File( rootDir, "a.done" ),
+                new File( rootDir, "b.done" ),
+                new File( rootDir, ".c.done" ),
+                new File( rootDir, "d.txt" ),
+                new File( rootDir, "e.tmp" ) };
+        UnixSshPath rootPath = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            rootDir.mkdirs();
+            for ( File file : files ) {
+                IOUtils.writeFile( file, expected, UTF8 );
+            }
+
+            UnixSshFileSystem fileSystem = rootPath.getFileSystem();
+            assertEquals( "-name '*.done'", fileSystem.getPathMatcher( "glob:*.done" ).findPredicate() );
+            assertEquals( "\\( -name '*.done' -o -name '*.txt' \\)",
+                    fileSystem.getPathMatcher( "glob:*.{done,txt}" ).findPredicate() );
+            assertEquals( "-name '*.txt'", fileSystem.getPathMatcher( "regex:.*\\.txt" ).findPredicate() );
+            assertNull( fileSystem.getPathMatcher( "regex:[a-c]+\\.done" ).findPredicate() );
+
+            Set<String> names = new HashSet<String>();
+            try (DirectoryStream<Path> directoryStream = fileSystem.provider().newDirectoryStream( rootPath, "*.done" )) {
+                for ( Path entry : directoryStream ) {
+                    names.add( entry.getFileName().toString() );
+                }
+            }
+            assertEquals( new HashSet<String>( Arrays.asList( "a.done", "b.done", ".c.done" ) ), names );
+
+            names.clear();
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream( rootPath,
+                    fileSystem.getPathMatcher( "glob:*.{txt,tmp}" ) )) {
+                for ( Path entry : directoryStream ) {
+                    names.add( entry.getFileName().toString() );
+                }
+            }
+            assertEquals( new HashSet<String>( Arrays.asList( "d.txt", "e.tmp" ) ), names );
+
+            // matched locally
+            names.clear();
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream( rootPath,
+                    fileSystem.getPathMatcher( "regex:[a-c]+\\.done" ) )) {
+                for ( Path entry : directoryStream ) {
+                    names.add( entry.getFileName().toString() );
+                }
+            }
+            assertEquals( new HashSet<String>( Arrays.asList( "a.done", "b.done" ) ), names );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( files );
+            IOUtils.deleteFiles( rootDir );
+        }
+    }
+
+    @Test
+    public void testNewInputStream() {
+        String root = UUID.randomUUID().toString();
+        String filename = "outputstreamtest.txt";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+
+            IOUtils.writeFile( file, expected );
+
+            InputStream inputStream = null;
+            try {
+                inputStream = filePath.getFileSystem().provider().newInputStream( filePath );
+                assertEquals( expected, IOUtils.copyToString( inputStream ) );
+            }
+            finally {
+                IOUtils.closeAndLogException( inputStream );
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
         }
     }
 
     @Test
-    public void testNewInputStream() {
+    public void testNewInputStreamSkip() {
         String root = UUID.randomUUID().toString();
-        String filename = "outputstreamtest.txt";
+        String filename = "inputstreamskip.bin";
 
         File rootDir = new File( filesystemPath, root );
         File file = new File( rootDir, filename );
@@ -226,15 +966,32 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
         try {
             rootDir.mkdirs();
 
-            IOUtils.writeFile( file, expected );
-
-            InputStream inputStream = null;
-            try {
-                inputStream = filePath.getFileSystem().provider().newInputStream( filePath );
-                assertEquals( expected, IOUtils.copyToString( inputStream ) );
+            byte[] contents = new byte[2 * UnixSshFileSystemProvider.MAX_BLOCK_SIZE];
+            new Random( 2 ).nextBytes( contents );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( contents );
             }
-            finally {
-                IOUtils.closeAndLogException( inputStream );
+
+            try (UnixSshInputStream inputStream = (UnixSshInputStream)filePath.getFileSystem().provider().newInputStream( filePath )) {
+                byte[] buffer = new byte[100];
+                int read = 0;
+                while ( read < buffer.length ) {
+                    read += inputStream.read( buffer, read, buffer.length - read );
+                }
+                assertArrayEquals( Arrays.copyOfRange( contents, 0, 100 ), buffer );
+
+                // small skip reads through, large skip restarts remotely
+                long offset = 100;
+                offset += inputStream.skip( 1000 );
+                assertEquals( contents[(int)offset] & 0xff, inputStream.read() );
+                offset++;
+                assertEquals( UnixSshFileSystemProvider.MAX_BLOCK_SIZE, inputStream.skip( UnixSshFileSystemProvider.MAX_BLOCK_SIZE ) );
+                offset += UnixSshFileSystemProvider.MAX_BLOCK_SIZE;
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertEquals( contents.length - offset, inputStream.transferTo( out ) );
+                assertArrayEquals( Arrays.copyOfRange( contents, (int)offset, contents.length ), out.toByteArray() );
+                assertEquals( -1, inputStream.read() );
             }
         }
         catch ( IOException e ) {
@@ -285,6 +1042,40 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
         }
     }
 
+    @Test
+    public void testNewOutputStreamBulk() {
+        String root = UUID.randomUUID().toString();
+        String filename = "outputstreambulk.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+
+            byte[] contents = new byte[3 * UnixSshOutputStream.DEFAULT_BUFFER_SIZE + 5];
+            new Random( 3 ).nextBytes( contents );
+            try (OutputStream outputStream = filePath.getFileSystem().provider().newOutputStream( filePath )) {
+                // single bytes, small writes, a flush, then one bigger than the buffer
+                outputStream.write( contents[0] );
+                outputStream.write( contents, 1, 99 );
+                outputStream.flush();
+                outputStream.write( contents, 100, 2 * UnixSshOutputStream.DEFAULT_BUFFER_SIZE );
+                outputStream.write( contents, 100 + 2 * UnixSshOutputStream.DEFAULT_BUFFER_SIZE,
+                        contents.length - 100 - 2 * UnixSshOutputStream.DEFAULT_BUFFER_SIZE );
+            }
+            assertArrayEquals( contents, Files.readAllBytes( file.toPath() ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
     @Test
     public void testPosixFileAttributes() {
         String root = UUID.randomUUID().toString();
@@ -397,6 +1188,66 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
         }
     }
 
+    @Test
+    public void testReadAttributesBulk() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        // long enough names to need more than one batch
+        char[] padding = new char[200];
+        Arrays.fill( padding, 'x' );
+        File[] files = new File[400];
+        File unreadable = null;
+        UnixSshPath rootPath = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            rootDir.mkdirs();
+            List<UnixSshPath> paths = new ArrayList<UnixSshPath>();
+            for ( int i = 0; i < files.length; i++ ) {
+                files[i] = new File( rootDir, new String( padding ) + i );
+                IOUtils.writeFile( files[i], "bulk" + i, UTF8 );
+                paths.add( rootPath.resolve( files[i].getName() ) );
+            }
+            UnixSshPath missingPath = rootPath.resolve( "missing" );
+            paths.add( 10, missingPath );
+            // stat prints its name over two lines, so it cannot be read
+            unreadable = new File( rootDir, "new\nline" );
+            IOUtils.writeFile( unreadable, "unreadable", UTF8 );
+            UnixSshPath unreadablePath = rootPath.resolve( unreadable.getName() );
+            paths.add( 20, unreadablePath );
+
+            Map<UnixSshPath, IOException> failures = new HashMap<UnixSshPath, IOException>();
+            Map<UnixSshPath, PosixFileAttributes> map = rootPath.getFileSystem().provider()
+                    .readAttributes( paths, PosixFileAttributes.class, failures );
+            assertEquals( Collections.singleton( unreadablePath ), failures.keySet() );
+            paths.remove( unreadablePath );
+            assertEquals( paths, new ArrayList<UnixSshPath>( map.keySet() ) );
+            assertTrue( map.containsKey( missingPath ) );
+            assertNull( map.get( missingPath ) );
+            for ( int i = 0; i < files.length; i++ ) {
+                PosixFileAttributes attributes = map.get( rootPath.resolve( files[i].getName() ) );
+                assertTrue( attributes.isRegularFile() );
+                assertEquals( ("bulk" + i).length(), attributes.size() );
+                assertEquals( files[i].lastModified() / 1000, attributes.lastModifiedTime().toMillis() / 1000 );
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            for ( File file : files ) {
+                if ( file != null ) {
+                    IOUtils.deleteFiles( file );
+                }
+            }
+            if ( unreadable != null ) {
+                IOUtils.deleteFiles( unreadable );
+            }
+            IOUtils.deleteFiles( rootDir );
+        }
+    }
+
     @Test
     public void testRelativize() {
         FileSystem fileSystem = FileSystems.getFileSystem( uri );
@@ -463,6 +1314,169 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
         }
     }
 
+    @Test
+    public void testSeekableByteChannelOpenOptions() {
+        String root = UUID.randomUUID().toString();
+        String filename = "openoptions.txt";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+
+            try {
+                Files.newByteChannel( filePath, StandardOpenOption.READ ).close();
+                fail( "expected " + filePath + " to be missing" );
+            }
+            catch ( NoSuchFileException e ) {
+                // expected
+            }
+
+            Set<PosixFilePermission> permissions = PosixFilePermissions.fromString( "rw-r-----" );
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath,
+                    EnumSet.of( StandardOpenOption.CREATE, StandardOpenOption.WRITE ),
+                    PosixFilePermissions.asFileAttribute( permissions ) )) {
+                assertEquals( 0, byteChannel.size() );
+                byteChannel.write( ByteBuffer.wrap( expected.getBytes( UTF8 ) ) );
+            }
+            assertEquals( permissions, Files.getPosixFilePermissions( filePath ) );
+
+            // an existing file is neither recreated nor given the attributes
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath,
+                    EnumSet.of( StandardOpenOption.CREATE, StandardOpenOption.READ ),
+                    PosixFilePermissions.asFileAttribute( PosixFilePermissions.fromString( "rwx------" ) ) )) {
+                assertEquals( expected.getBytes( UTF8 ).length, byteChannel.size() );
+            }
+            assertEquals( permissions, Files.getPosixFilePermissions( filePath ) );
+
+            try {
+                Files.newByteChannel( filePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE ).close();
+                fail( "expected " + filePath + " to exist already" );
+            }
+            catch ( FileAlreadyExistsException e ) {
+                // expected
+            }
+
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING )) {
+                assertEquals( 0, byteChannel.size() );
+            }
+            assertEquals( 0, file.length() );
+
+            // attributes from a listing are not trusted for the open
+            Path listedPath = listed( filePath.getParent(), filename );
+            IOUtils.writeFile( file, expected, UTF8 );
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( listedPath, StandardOpenOption.READ )) {
+                assertEquals( expected.getBytes( UTF8 ).length, byteChannel.size() );
+            }
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( listedPath,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND )) {
+                byteChannel.write( ByteBuffer.wrap( "!".getBytes( UTF8 ) ) );
+            }
+            assertEquals( expected + "!", IOUtils.readFile( file, UTF8 ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testSeekableByteChannelRangedRead() {
+        String root = UUID.randomUUID().toString();
+        String filename = "rangedread.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+
+            byte[] contents = new byte[3 * UnixSshFileSystemProvider.MAX_BLOCK_SIZE];
+            new Random( 1 ).nextBytes( contents );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( contents );
+            }
+
+            try (SeekableByteChannel byteChannel = filePath.getFileSystem().provider().newByteChannel(
+                    filePath, EnumSet.of( StandardOpenOption.READ ) )) {
+                int offset = UnixSshFileSystemProvider.MAX_BLOCK_SIZE / 2 + 7;
+                ByteBuffer buffer = ByteBuffer.allocate( UnixSshFileSystemProvider.MAX_BLOCK_SIZE + 13 );
+                assertEquals( buffer.capacity(), byteChannel.position( offset ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( contents, offset, offset + buffer.capacity() ), buffer.array() );
+
+                // reading past the end should only return what is there
+                buffer.clear();
+                offset = contents.length - 10;
+                assertEquals( 10, byteChannel.position( offset ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( contents, offset, contents.length ),
+                        Arrays.copyOf( buffer.array(), 10 ) );
+                assertEquals( -1, byteChannel.read( buffer ) );
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testSeekableByteChannelUnalignedWrite() {
+        String root = UUID.randomUUID().toString();
+        String filename = "unalignedwrite.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+
+            byte[] contents = new byte[3 * UnixSshFileSystemProvider.MAX_BLOCK_SIZE];
+            new Random( 1 ).nextBytes( contents );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( contents );
+            }
+
+            UnixSshPath unixPath = (UnixSshPath)filePath;
+            if ( unixPath.getFileSystem().getVariant( "dd" ) == Variant.GNU ) {
+                // an odd offset must not cost a syscall per byte
+                assertTrue( unixPath.getFileSystem().provider().writeCommand( unixPath, 7 )
+                        .contains( " bs=" + UnixSshFileSystemProvider.WRITE_BLOCK_SIZE + " " ) );
+            }
+
+            byte[] replacement = new byte[UnixSshFileSystemProvider.MAX_BLOCK_SIZE + 13];
+            new Random( 2 ).nextBytes( replacement );
+            int offset = UnixSshFileSystemProvider.MAX_BLOCK_SIZE / 2 + 7;
+            try (SeekableByteChannel byteChannel = filePath.getFileSystem().provider().newByteChannel(
+                    filePath, EnumSet.of( StandardOpenOption.WRITE ) )) {
+                ByteBuffer buffer = ByteBuffer.wrap( replacement );
+                byteChannel.position( offset );
+                while ( buffer.hasRemaining() ) {
+                    byteChannel.write( buffer );
+                }
+            }
+            System.arraycopy( replacement, 0, contents, offset, replacement.length );
+            assertArrayEquals( contents, Files.readAllBytes( file.toPath() ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
     @Test
     public void testStatDirectory() {
         final String root = UUID.randomUUID().toString();
@@ -509,6 +1523,41 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
         }
     }
 
+    @Test
+    public void testUpload() {
+        String root = UUID.randomUUID().toString();
+        String filename = "upload.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        File localFile = new File( rootDir, "local.bin" );
+        UnixSshPath filePath = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+
+            byte[] contents = new byte[(int)(5 * UnixSshParallelTransfer.MINIMUM_RANGE_SIZE + 321)];
+            new Random( 5 ).nextBytes( contents );
+            try (OutputStream outputStream = new FileOutputStream( localFile )) {
+                outputStream.write( contents );
+            }
+            // existing content longer than the upload must not survive
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( new byte[contents.length + 1000] );
+            }
+
+            filePath.getFileSystem().provider().upload( localFile.toPath(), filePath, 3, true, null );
+            assertArrayEquals( contents, Files.readAllBytes( file.toPath() ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, localFile, rootDir );
+        }
+    }
+
     @Test
     public void testUri() {
         String filename = "silly.txt";
@@ -519,4 +1568,248 @@ public class UnixSshFileSystemTest extends FileSystemTestUtils {
         assertEquals( port, path.getPort() );
         assertEquals( sshPath + PATH_SEPARATOR + filename, path.toString() );
     }
+
+    @Test
+    public void testWalk() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File dir1 = new File( rootDir, "dir1" );
+        File sub = new File( dir1, "sub" );
+        File dir2 = new File( rootDir, "dir2" );
+        File[] files = new File[] {
+                new File( rootDir, "a.txt" ),
+                new File( dir1, "b.txt" ),
+                new File( sub, "c.txt" ),
+                new File( dir2, "d.txt" ) };
+        UnixSshPath rootPath = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            sub.mkdirs();
+            dir2.mkdirs();
+            for ( File file : files ) {
+                IOUtils.writeFile( file, expected, UTF8 );
+            }
+
+            Set<Path> seen = new HashSet<Path>();
+            try (DirectoryStream<Path> walk = rootPath.getFileSystem().provider().walk( rootPath, Integer.MAX_VALUE )) {
+                for ( Path entry : walk ) {
+                    // directories come ahead of their contents
+                    assertTrue( entry.equals( rootPath ) || seen.contains( entry.getParent() ) );
+                    assertEquals( entry.getFileName().toString().endsWith( ".txt" ), Files.isRegularFile( entry ) );
+                    if ( Files.isRegularFile( entry ) ) {
+                        assertEquals( expected.length(), Files.size( entry ) );
+                    }
+                    seen.add( entry );
+                }
+            }
+            assertEquals( 8, seen.size() );
+            assertTrue( seen.contains( rootPath.resolve( "dir1/sub/c.txt" ) ) );
+
+            int count = 0;
+            try (DirectoryStream<Path> walk = rootPath.getFileSystem().provider().walk( rootPath, 1 )) {
+                for ( Path entry : walk ) {
+                    assertTrue( entry.getNameCount() - rootPath.getNameCount() <= 1 );
+                    count++;
+                }
+            }
+            assertEquals( 4, count );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( files );
+            IOUtils.deleteFiles( sub, dir1, dir2, rootDir );
+        }
+    }
+
+    @Test
+    public void testWalkFileTree() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File dir1 = new File( rootDir, "dir1" );
+        File skip = new File( rootDir, "skip" );
+        File[] files = new File[] {
+                new File( rootDir, "a.txt" ),
+                new File( dir1, "b.txt" ),
+                new File( skip, "c.txt" ) };
+        final UnixSshPath rootPath = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            dir1.mkdirs();
+            skip.mkdirs();
+            for ( File file : files ) {
+                IOUtils.writeFile( file, expected, UTF8 );
+            }
+
+            final List<String> events = new ArrayList<String>();
+            rootPath.getFileSystem().provider().walkFileTree( rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult postVisitDirectory( Path dir, IOException e ) {
+                    events.add( "post " + rootPath.relativize( dir ) );
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attributes ) {
+                    events.add( "pre " + rootPath.relativize( dir ) );
+                    return dir.getFileName().toString().equals( "skip" )
+                            ? FileVisitResult.SKIP_SUBTREE
+                            : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) {
+                    assertTrue( attributes.isRegularFile() );
+                    events.add( "file " + rootPath.relativize( file ) );
+                    return FileVisitResult.CONTINUE;
+                }
+            } );
+
+            assertEquals( "pre ", events.get( 0 ) );
+            assertEquals( "post ", events.get( events.size() - 1 ) );
+            assertTrue( events.contains( "file a.txt" ) );
+            assertTrue( events.indexOf( "pre dir1" ) < events.indexOf( "file dir1/b.txt" ) );
+            assertTrue( events.indexOf( "file dir1/b.txt" ) < events.indexOf( "post dir1" ) );
+            assertTrue( events.contains( "pre skip" ) );
+            assertFalse( events.contains( "file skip/c.txt" ) );
+            assertFalse( events.contains( "post skip" ) );
+            assertEquals( 7, events.size() );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( files );
+            IOUtils.deleteFiles( dir1, skip, rootDir );
+        }
+    }
+
+    @Test
+    public void testWalkFileTreeRemovedEntries() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        // enough for find to stat them in several batches
+        final File[] files = new File[20000];
+        final UnixSshPath rootPath = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            rootDir.mkdirs();
+            for ( int i = 0; i < files.length; i++ ) {
+                files[i] = new File( rootDir, "entry" + i + "-" + UUID.randomUUID().toString() );
+                files[i].createNewFile();
+            }
+
+            final AtomicLong count = new AtomicLong();
+            rootPath.getFileSystem().provider().walkFileTree( rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) throws IOException {
+                    if ( count.getAndIncrement() == 0 ) {
+                        // gone before the rest of them could be stat'ed
+                        IOUtils.deleteFiles( files );
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            } );
+            assertTrue( count.get() < files.length );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( files );
+            IOUtils.deleteFiles( rootDir );
+        }
+    }
+
+    @Test
+    public void testWalkFileTreeUnreadable() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File locked = new File( rootDir, "locked" );
+        File open = new File( rootDir, "open" );
+        File[] files = new File[] {
+                new File( rootDir, "a.txt" ),
+                new File( locked, "hidden.txt" ),
+                new File( open, "b.txt" ) };
+        final UnixSshPath rootPath = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root );
+        try {
+            locked.mkdirs();
+            open.mkdirs();
+            for ( File file : files ) {
+                IOUtils.writeFile( file, expected, UTF8 );
+            }
+            locked.setReadable( false, false );
+            locked.setExecutable( false, false );
+            // nothing is unreadable to root
+            Assume.assumeFalse( Files.isReadable( rootPath.resolve( "locked" ) ) );
+
+            final List<String> events = new ArrayList<String>();
+            rootPath.getFileSystem().provider().walkFileTree( rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult postVisitDirectory( Path dir, IOException e ) {
+                    events.add( "post " + rootPath.relativize( dir ) );
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attributes ) {
+                    events.add( "pre " + rootPath.relativize( dir ) );
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) {
+                    events.add( "file " + rootPath.relativize( file ) );
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed( Path file, IOException e ) {
+                    assertTrue( e instanceof AccessDeniedException );
+                    events.add( "failed " + rootPath.relativize( file ) );
+                    return FileVisitResult.CONTINUE;
+                }
+            } );
+
+            assertEquals( "pre ", events.get( 0 ) );
+            assertEquals( "post ", events.get( events.size() - 1 ) );
+            assertTrue( events.contains( "failed locked" ) );
+            assertFalse( events.contains( "pre locked" ) );
+            assertFalse( events.contains( "post locked" ) );
+            assertTrue( events.contains( "file a.txt" ) );
+            assertTrue( events.contains( "file open/b.txt" ) );
+            assertEquals( 7, events.size() );
+
+            // without a visitor to report it to, it fails the walk at the end
+            try (DirectoryStream<Path> walk = rootPath.getFileSystem().provider().walk( rootPath, Integer.MAX_VALUE )) {
+                Iterator<Path> iterator = walk.iterator();
+                while ( iterator.hasNext() ) {
+                    assertFalse( iterator.next().endsWith( "hidden.txt" ) );
+                }
+                fail( "expected the walk to fail" );
+            }
+            catch ( DirectoryIteratorException e ) {
+                assertTrue( e.getCause() instanceof AccessDeniedException );
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", rootPath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + rootPath + ": " + e.getMessage() );
+        }
+        finally {
+            locked.setReadable( true, false );
+            locked.setExecutable( true, false );
+            IOUtils.deleteFiles( files );
+            IOUtils.deleteFiles( locked, open, rootDir );
+        }
+    }
 }
@@ -0,0 +1,183 @@
+package com.pastdev.jsch.nio.file;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.internal.AssumptionViolatedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.IOUtils;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+
+
+/**
+ * Not really a test, more of a benchmark. Logs the throughput of the various
+ * transfer paths so that changes to them can be compared.
+ */
+public class UnixSshFileSystemThroughputIT extends FileSystemTestUtils {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshFileSystemThroughputIT.class );
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int READ_COUNT = 16;
+
+    @AfterClass
+    public static void afterClass() {
+        try {
+            closeFileSystem();
+        }
+        catch ( AssumptionViolatedException e ) {
+            Assume.assumeNoException( e );
+        }
+    }
+
+    @BeforeClass
+    public static void beforeClass() {
+        try {
+            initializeFileSystem( UnixSshFileSystemProvider.SCHEME_SSH_UNIX, "it.ssh" );
+        }
+        catch ( AssumptionViolatedException e ) {
+            Assume.assumeNoException( e );
+        }
+    }
+
+    private static byte[] randomBytes( int size ) {
+        byte[] bytes = new byte[size];
+        new Random( 42 ).nextBytes( bytes );
+        return bytes;
+    }
+
+    private static void logThroughput( String name, long bytes, long nanos ) {
+        logger.info( "{}: {} bytes in {} ms ({} bytes/sec)", name, bytes, nanos / 1000000,
+                nanos == 0 ? "?" : (bytes * 1000000000L / nanos) );
+    }
+
+    private int legacyRead( UnixSshPath path, long startIndex, ByteBuffer bytes ) throws IOException, JSchException {
+        // the way UnixSshFileSystemProvider.read used to do it
+        int read = 0;
+        ChannelExecWrapper channel = path.getFileSystem().getCommandRunner().open(
+                path.getFileSystem().getCommand( "dd" ) + " bs=1 skip=" + startIndex
+                        + " if=" + path.toAbsolutePath().quotedString() + " 2> /dev/null" );
+        try (InputStream in = channel.getInputStream()) {
+            int localRead;
+            while ( bytes.hasRemaining() && (localRead = in.read( bytes.array(), bytes.position(), bytes.remaining() )) > 0 ) {
+                bytes.position( bytes.position() + localRead );
+                read += localRead;
+            }
+        }
+        finally {
+            channel.close();
+        }
+        return read;
+    }
+
+    private void legacyUpload( UnixSshPath path, byte[] bytes ) throws IOException, JSchException {
+        // the way UnixSshFileSystemProvider.newOutputStream used to do it
+        ChannelExecWrapper channel = path.getFileSystem().getCommandRunner().open(
+                path.getFileSystem().getCommand( "cat" ) + " > " + path.toAbsolutePath().quotedString() );
+        try (OutputStream out = channel.getOutputStream()) {
+            for ( byte b : bytes ) {
+                out.write( b );
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void testUploadThroughput() throws IOException, JSchException {
+        String root = UUID.randomUUID().toString();
+        String filename = "upload.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        UnixSshPath path = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        byte[] expected = randomBytes( FILE_SIZE );
+        try {
+            rootDir.mkdirs();
+
+            long start = System.nanoTime();
+            legacyUpload( path, expected );
+            logThroughput( "write(int) upload", expected.length, System.nanoTime() - start );
+            assertArrayEquals( expected, Files.readAllBytes( file.toPath() ) );
+
+            start = System.nanoTime();
+            try (OutputStream out = path.getFileSystem().provider().newOutputStream( path )) {
+                for ( int offset = 0; offset < expected.length; offset += 8192 ) {
+                    out.write( expected, offset, Math.min( 8192, expected.length - offset ) );
+                }
+            }
+            logThroughput( "buffered upload", expected.length, System.nanoTime() - start );
+            assertArrayEquals( expected, Files.readAllBytes( file.toPath() ) );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testRangedReadThroughput() throws IOException, JSchException {
+        String root = UUID.randomUUID().toString();
+        String filename = "rangedread.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        UnixSshPath path = (UnixSshPath)FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        byte[] expected = randomBytes( FILE_SIZE );
+        try {
+            rootDir.mkdirs();
+            try (FileOutputStream out = new FileOutputStream( file )) {
+                out.write( expected );
+            }
+
+            long stride = (FILE_SIZE - READ_SIZE) / READ_COUNT;
+            ByteBuffer buffer = ByteBuffer.allocate( READ_SIZE );
+
+            long start = System.nanoTime();
+            long total = 0;
+            for ( int i = 0; i < READ_COUNT; i++ ) {
+                buffer.clear();
+                int offset = (int)(i * stride);
+                total += legacyRead( path, offset, buffer );
+                assertArrayEquals( Arrays.copyOfRange( expected, offset, offset + READ_SIZE ), buffer.array() );
+            }
+            logThroughput( "dd bs=1", total, System.nanoTime() - start );
+
+            start = System.nanoTime();
+            total = 0;
+            for ( int i = 0; i < READ_COUNT; i++ ) {
+                buffer.clear();
+                int offset = (int)(i * stride);
+                total += path.getFileSystem().provider().read( path, offset, buffer );
+                assertArrayEquals( Arrays.copyOfRange( expected, offset, offset + READ_SIZE ), buffer.array() );
+            }
+            logThroughput( "ranged read", total, System.nanoTime() - start );
+            assertEquals( READ_COUNT * READ_SIZE, total );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.pastdev.jsch.nio.file;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+import java.util.List;
+
+
+import org.junit.Test;
+
+
+public class UnixSshParallelTransferTest {
+    @Test
+    public void testSplit() {
+        long[] sizes = new long[] { 1, 300000001L, 5 * UnixSshParallelTransfer.MINIMUM_RANGE_SIZE + 321,
+                100L * UnixSshParallelTransfer.MAXIMUM_RANGE_SIZE + 7 };
+        for ( long size : sizes ) {
+            List<UnixSshParallelTransfer.Range> ranges = UnixSshParallelTransfer.split( size, 4 );
+            long end = 0;
+            for ( UnixSshParallelTransfer.Range range : ranges ) {
+                assertEquals( end, range.position );
+                assertEquals( 0, range.position % UnixSshFileSystemProvider.WRITE_BLOCK_SIZE );
+                assertTrue( range.end > range.position );
+                end = range.end;
+            }
+            assertEquals( size, end );
+        }
+    }
+}
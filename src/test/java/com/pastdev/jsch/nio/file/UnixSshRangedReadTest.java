@@ -0,0 +1,95 @@
+package com.pastdev.jsch.nio.file;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.pastdev.jsch.IOUtils;
+
+
+public class UnixSshRangedReadTest extends FileSystemTestUtils {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshRangedReadTest.class );
+
+    @AfterClass
+    public static void afterClass() {
+        closeFileSystem();
+    }
+
+    @BeforeClass
+    public static void beforeClass() {
+        // tail and head behave the same on gnu systems, so the bsd commands
+        // can be exercised anywhere
+        Map<String, Object> environment = new HashMap<String, Object>();
+        environment.put( "variant.dd", Variant.BSD );
+        initializeFileSystem( UnixSshFileSystemProvider.SCHEME_SSH_UNIX, "ssh", environment );
+    }
+
+    @Test
+    public void testRangedRead() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, "ranged.bin" );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( file.getName() );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = new byte[100000];
+            new Random( 1 ).nextBytes( expected );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath, StandardOpenOption.READ )) {
+                ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+                assertEquals( 1000, byteChannel.position( 5001 ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, 5001, 6001 ), buffer.array() );
+
+                // a file gone since the channel opened is not an empty range
+                IOUtils.deleteFiles( file );
+                buffer.clear();
+                try {
+                    byteChannel.position( 7001 ).read( buffer );
+                    fail( "expected " + filePath + " to be gone" );
+                }
+                catch ( NoSuchFileException e ) {
+                    // expected
+                }
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+}
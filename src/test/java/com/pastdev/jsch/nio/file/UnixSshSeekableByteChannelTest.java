@@ -0,0 +1,349 @@
+package com.pastdev.jsch.nio.file;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.pastdev.jsch.IOUtils;
+
+
+public class UnixSshSeekableByteChannelTest extends FileSystemTestUtils {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshSeekableByteChannelTest.class );
+
+    @AfterClass
+    public static void afterClass() {
+        closeFileSystem();
+    }
+
+    @BeforeClass
+    public static void beforeClass() {
+        Map<String, Object> environment = new HashMap<String, Object>();
+        environment.put( "channel.persistent", true );
+        environment.put( "channel.readahead", true );
+        environment.put( "channel.readahead.min", 8192L );
+        environment.put( "channel.readahead.max", 65536L );
+        environment.put( "channel.writebehind", true );
+        environment.put( "channel.writebehind.size", 65536L );
+        initializeFileSystem( UnixSshFileSystemProvider.SCHEME_SSH_UNIX, "ssh", environment );
+    }
+
+    private static byte[] randomBytes( int size ) {
+        byte[] bytes = new byte[size];
+        new Random( size ).nextBytes( bytes );
+        return bytes;
+    }
+
+    @Test
+    public void testClosedFileSystem() throws IOException, URISyntaxException {
+        UnixSshFileSystemProvider provider = (UnixSshFileSystemProvider)FileSystems.getFileSystem( uri ).provider();
+        // never connects, and does not replace the file system under test
+        UnixSshFileSystem fileSystem = new UnixSshFileSystem( provider,
+                new URI( UnixSshFileSystemProvider.SCHEME_SSH_UNIX + "://closed.invalid/tmp" ),
+                new HashMap<String, Object>() );
+        fileSystem.getExecutorService();
+        fileSystem.close();
+        try {
+            fileSystem.getExecutorService();
+            fail( "expected the executor to be gone with the file system" );
+        }
+        catch ( ClosedFileSystemException e ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRandomAccess() {
+        String root = UUID.randomUUID().toString();
+        String filename = "randomaccess.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = randomBytes( 100000 );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath,
+                    EnumSet.of( StandardOpenOption.READ, StandardOpenOption.WRITE ) )) {
+                // read the tail then the head, like a zip reader would
+                ByteBuffer buffer = ByteBuffer.allocate( 22 );
+                assertEquals( 22, byteChannel.position( expected.length - 22 ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, expected.length - 22, expected.length ), buffer.array() );
+                assertEquals( -1, byteChannel.read( buffer ) );
+
+                buffer = ByteBuffer.allocate( 1000 );
+                assertEquals( 1000, byteChannel.position( 0 ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, 0, 1000 ), buffer.array() );
+
+                // overwrite in the middle
+                byte[] replacement = randomBytes( 5000 );
+                assertEquals( replacement.length, byteChannel.position( 500 ).write( ByteBuffer.wrap( replacement ) ) );
+                System.arraycopy( replacement, 0, expected, 500, replacement.length );
+
+                // extend past the end, then truncate back
+                ByteBuffer direct = ByteBuffer.allocateDirect( 10 );
+                direct.put( randomBytes( 10 ) ).flip();
+                assertEquals( 10, byteChannel.position( expected.length ).write( direct ) );
+                assertEquals( expected.length + 10, byteChannel.size() );
+                byteChannel.truncate( expected.length );
+                assertEquals( expected.length, byteChannel.size() );
+
+                buffer = ByteBuffer.allocate( expected.length );
+                byteChannel.position( 0 );
+                while ( buffer.hasRemaining() && byteChannel.read( buffer ) > 0 );
+                assertArrayEquals( expected, buffer.array() );
+            }
+
+            assertArrayEquals( expected, Files.readAllBytes( file.toPath() ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testReadAhead() {
+        String root = UUID.randomUUID().toString();
+        String filename = "readahead.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = randomBytes( 300000 );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+
+            UnixSshReadAheadStatistics statistics = ((UnixSshFileSystem)filePath.getFileSystem()).getReadAheadStatistics();
+            long hits = statistics.getHits();
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath,
+                    EnumSet.of( StandardOpenOption.READ, StandardOpenOption.WRITE ) )) {
+                // sequential, the way Channels.newInputStream reads
+                ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+                for ( int offset = 0; offset < 150000; offset += buffer.capacity() ) {
+                    buffer.clear();
+                    assertEquals( buffer.capacity(), byteChannel.read( buffer ) );
+                    assertArrayEquals( Arrays.copyOfRange( expected, offset, offset + buffer.capacity() ), buffer.array() );
+                }
+                assertTrue( statistics.getHits() - hits > 100 );
+
+                // a write ahead of the reader must not be hidden by the buffer
+                byte[] replacement = randomBytes( 100 );
+                byteChannel.position( 151000 ).write( ByteBuffer.wrap( replacement ) );
+                System.arraycopy( replacement, 0, expected, 151000, replacement.length );
+
+                // random access
+                buffer.clear();
+                assertEquals( buffer.capacity(), byteChannel.position( 250000 ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, 250000, 251000 ), buffer.array() );
+
+                // back to sequential through the end of the file
+                buffer = ByteBuffer.allocate( 8192 );
+                byteChannel.position( 150000 );
+                ByteBuffer actual = ByteBuffer.allocate( expected.length - 150000 );
+                int read;
+                while ( (read = byteChannel.read( buffer )) >= 0 ) {
+                    buffer.flip();
+                    actual.put( buffer );
+                    buffer.clear();
+                    assertTrue( read > 0 );
+                }
+                assertArrayEquals( Arrays.copyOfRange( expected, 150000, expected.length ), actual.array() );
+            }
+            logger.debug( "read-ahead statistics: {}", statistics );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testTruncatedBehindChannel() {
+        String root = UUID.randomUUID().toString();
+        String filename = "truncated.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = randomBytes( 100000 );
+            try (OutputStream outputStream = new FileOutputStream( file )) {
+                outputStream.write( expected );
+            }
+
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath, StandardOpenOption.READ )) {
+                ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+                assertEquals( 1000, byteChannel.read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, 0, 1000 ), buffer.array() );
+
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" )) {
+                    randomAccessFile.setLength( 50000 );
+                }
+
+                // the channel still thinks the file is 100000 bytes long
+                buffer.clear();
+                assertEquals( 0, byteChannel.position( 60000 ).read( buffer ) );
+                buffer.clear();
+                assertEquals( 500, byteChannel.position( 49500 ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, 49500, 50000 ),
+                        Arrays.copyOfRange( buffer.array(), 0, 500 ) );
+                buffer.clear();
+                assertEquals( 1000, byteChannel.position( 20000 ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, 20000, 21000 ), buffer.array() );
+            }
+
+            // a directory stats fine but dd cannot read it, so the helper
+            // promises bytes it then fails to copy
+            try (UnixSshSeekableByteChannelHelper helper = new UnixSshSeekableByteChannelHelper(
+                    (UnixSshPath)filePath.getParent() )) {
+                ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+                assertEquals( 0, helper.read( 0, buffer ) );
+                assertEquals( 0, buffer.position() );
+                assertTrue( helper.size() > 0 );
+            }
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testWriteBehind() {
+        String root = UUID.randomUUID().toString();
+        String filename = "writebehind.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = randomBytes( 200000 );
+
+            try (UnixSshSeekableByteChannel byteChannel = (UnixSshSeekableByteChannel)Files.newByteChannel( filePath,
+                    EnumSet.of( StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE ) )) {
+                // small sequential writes get merged
+                for ( int offset = 0; offset < expected.length; offset += 4096 ) {
+                    ByteBuffer buffer = ByteBuffer.wrap( expected, offset, Math.min( 4096, expected.length - offset ) );
+                    assertEquals( buffer.remaining(), byteChannel.write( buffer ) );
+                }
+                assertEquals( expected.length, byteChannel.size() );
+
+                // overwrite inside the pending extent, then jump back
+                byte[] replacement = randomBytes( 300 );
+                byteChannel.position( expected.length - 1000 ).write( ByteBuffer.wrap( replacement ) );
+                System.arraycopy( replacement, 0, expected, expected.length - 1000, replacement.length );
+                byteChannel.position( 10 ).write( ByteBuffer.wrap( replacement ) );
+                System.arraycopy( replacement, 0, expected, 10, replacement.length );
+
+                // reads see pending writes
+                ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+                assertEquals( 1000, byteChannel.position( 0 ).read( buffer ) );
+                assertArrayEquals( Arrays.copyOfRange( expected, 0, 1000 ), buffer.array() );
+
+                byteChannel.position( 50 ).write( ByteBuffer.wrap( replacement ) );
+                System.arraycopy( replacement, 0, expected, 50, replacement.length );
+                byteChannel.flush();
+                assertArrayEquals( expected, Files.readAllBytes( file.toPath() ) );
+
+                byteChannel.position( 100 ).write( ByteBuffer.wrap( replacement ) );
+                System.arraycopy( replacement, 0, expected, 100, replacement.length );
+            }
+
+            assertArrayEquals( expected, Files.readAllBytes( file.toPath() ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+
+    @Test
+    public void testLargeWrite() {
+        String root = UUID.randomUUID().toString();
+        String filename = "largewrite.bin";
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, filename );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( filename );
+        try {
+            rootDir.mkdirs();
+            byte[] expected = randomBytes( 2 * UnixSshFileSystemProvider.MAX_BLOCK_SIZE + 17 );
+
+            try (SeekableByteChannel byteChannel = Files.newByteChannel( filePath,
+                    EnumSet.of( StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE ) )) {
+                ByteBuffer buffer = ByteBuffer.wrap( expected );
+                while ( buffer.hasRemaining() ) {
+                    byteChannel.write( buffer );
+                }
+                assertEquals( expected.length, byteChannel.size() );
+            }
+
+            assertArrayEquals( expected, Files.readAllBytes( file.toPath() ) );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.pastdev.jsch.nio.file;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.pastdev.jsch.IOUtils;
+import com.pastdev.jsch.command.CommandRunner.ExecuteResult;
+
+
+public class UnixSshShellMultiplexerTest extends FileSystemTestUtils {
+    private static Logger logger = LoggerFactory.getLogger( UnixSshShellMultiplexerTest.class );
+    private static final int MAXIMUM_SHELLS = 2;
+
+    @AfterClass
+    public static void afterClass() {
+        closeFileSystem();
+    }
+
+    @BeforeClass
+    public static void beforeClass() {
+        Map<String, Object> environment = new HashMap<String, Object>();
+        environment.put( "shell.multiplexer", true );
+        environment.put( "shell.multiplexer.shells", (long)MAXIMUM_SHELLS );
+        initializeFileSystem( UnixSshFileSystemProvider.SCHEME_SSH_UNIX, "ssh", environment );
+    }
+
+    private UnixSshShellMultiplexer getShellMultiplexer() {
+        UnixSshShellMultiplexer shellMultiplexer = ((UnixSshFileSystem)FileSystems.getFileSystem( uri ))
+                .getShellMultiplexer();
+        assertNotNull( shellMultiplexer );
+        return shellMultiplexer;
+    }
+
+    @Test
+    public void testExecute() {
+        UnixSshShellMultiplexer shellMultiplexer = getShellMultiplexer();
+        try {
+            ExecuteResult result = shellMultiplexer.execute( "printf 'it'\\''s'; echo oops >&2; exit 3" );
+            assertEquals( 3, result.getExitCode() );
+            assertEquals( "it's", result.getStdout() );
+            assertEquals( "oops\n", result.getStderr() );
+
+            // nothing a command does reaches the shell or the commands after it
+            result = shellMultiplexer.execute( "x=1; exit 80" );
+            assertEquals( 80, result.getExitCode() );
+            result = shellMultiplexer.execute( "if then" );
+            assertTrue( result.getExitCode() != 0 );
+            result = shellMultiplexer.execute( "cat; echo \"[$x]\"" );
+            assertEquals( 0, result.getExitCode() );
+            assertEquals( "[]\n", result.getStdout() );
+            assertEquals( "", result.getStderr() );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed: {}", e );
+            logger.debug( "failed:", e );
+            fail( "failed: " + e.getMessage() );
+        }
+    }
+
+    @Test
+    public void testPipelined() {
+        final UnixSshShellMultiplexer shellMultiplexer = getShellMultiplexer();
+        ExecutorService executorService = Executors.newFixedThreadPool( 8 );
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for ( int i = 0; i < 8; i++ ) {
+                final int thread = i;
+                futures.add( executorService.submit( new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for ( int j = 0; j < 50; j++ ) {
+                            String expected = thread + "-" + j;
+                            ExecuteResult result = shellMultiplexer.execute( "echo " + expected
+                                    + "; echo " + expected + " >&2; exit " + j );
+                            assertEquals( expected + "\n", result.getStdout() );
+                            assertEquals( expected + "\n", result.getStderr() );
+                            assertEquals( j, result.getExitCode() );
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<Void> future : futures ) {
+                future.get();
+            }
+            assertTrue( shellMultiplexer.getShellCount() <= MAXIMUM_SHELLS );
+        }
+        catch ( InterruptedException | ExecutionException e ) {
+            logger.error( "failed: {}", e );
+            logger.debug( "failed:", e );
+            fail( "failed: " + e.getMessage() );
+        }
+        finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void testProvider() {
+        String root = UUID.randomUUID().toString();
+
+        File rootDir = new File( filesystemPath, root );
+        File file = new File( rootDir, "multiplexed.txt" );
+        Path filePath = FileSystems.getFileSystem( uri ).getPath( root ).resolve( "multiplexed.txt" );
+        try {
+            rootDir.mkdirs();
+            IOUtils.writeFile( file, "hello" );
+
+            assertEquals( 5, Files.size( filePath ) );
+            assertTrue( Files.isRegularFile( filePath ) );
+            Files.setLastModifiedTime( filePath, Files.getLastModifiedTime( filePath ) );
+            Files.delete( filePath );
+            assertFalse( file.exists() );
+            assertFalse( Files.exists( filePath ) );
+            assertTrue( getShellMultiplexer().getShellCount() > 0 );
+        }
+        catch ( IOException e ) {
+            logger.error( "failed for {}: {}", filePath, e );
+            logger.debug( "failed:", e );
+            fail( "failed for " + filePath + ": " + e.getMessage() );
+        }
+        finally {
+            IOUtils.deleteFiles( file, rootDir );
+        }
+    }
+}